@@ -0,0 +1,179 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CommonArrayFS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.FSIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+
+/**
+ * Benchmarks of the per feature structure hot paths of the mapper: 
+ * condition evaluation, target creation with common feature copies, source 
+ * path extraction and array access. Each operation measures a pass over all 
+ * source annotations of the CAS.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotPathBenchmark {
+	@Param({"10000"})
+	int annotationCount;
+
+	@Param({"4", "32"})
+	int featureCount;
+
+	@Param({"1", "4"})
+	int pathDepth;
+
+	@Param({"4", "64"})
+	int arraySize;
+
+	private SyntheticCas synthetic;
+	private CAS cas;
+	private FeatureStructure[] sources;
+	private CommonArrayFS[] arrays;
+	private RulePlan stringConditionRule;
+	private RulePlan doubleConditionRule;
+	private RulePlan copyRule;
+	private RulePlan pathRule;
+	private FeatureStructure[] sourceSlots;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception {
+		synthetic = new SyntheticCas(featureCount, pathDepth, arraySize);
+		cas = synthetic.createCas();
+		String mapping = 
+				"bench.Source where category = \"GENE\" -> bench.Target;\n"+
+				"bench.Source where score > 0.5 -> bench.Target;\n"+
+				"bench.Source -> bench.Target;\n"+
+				"bench.Source -> bench.Target, "+synthetic.deepPath()+" -> value, "+
+				"ids["+(arraySize-1)+"] -> syn["+(arraySize-1)+"], category -> label;";
+		List<RulePlan> rules = MappingPlan.compile(TypeMapBuilder.build(mapping), cas.getTypeSystem(), 
+				false, false, DispatchMode.SEQUENTIAL, IndexingMode.IMMEDIATE).getRules();
+		stringConditionRule = rules.get(0);
+		doubleConditionRule = rules.get(1);
+		copyRule = rules.get(2);
+		pathRule = rules.get(3);
+		sourceSlots = new FeatureStructure[Math.max(copyRule.getSourceSlotCount(), 
+				pathRule.getSourceSlotCount())];
+	}
+
+	// Targets are created in the CAS, so it is refilled for every iteration 
+	// to keep its size bounded.
+	@Setup(Level.Iteration)
+	public void setUpIteration() {
+		cas.reset();
+		synthetic.populate(cas, annotationCount);
+		List<FeatureStructure> sourceList = new ArrayList<FeatureStructure>();
+		FSIterator<FeatureStructure> fsIter = cas.getIndexRepository().getAllIndexedFS(copyRule.getSourceType());
+		while(fsIter.hasNext()) {
+			sourceList.add(fsIter.next());
+		}
+		sources = sourceList.toArray(new FeatureStructure[sourceList.size()]);
+		Feature ids = copyRule.getSourceType().getFeatureByBaseName("ids");
+		arrays = new CommonArrayFS[sources.length];
+		for(int i=0; i<sources.length; ++i) {
+			arrays[i] = (CommonArrayFS) sources[i].getFeatureValue(ids);
+		}
+	}
+
+	@Benchmark
+	public int stringCondition() throws Exception {
+		int satisfied = 0;
+		for(FeatureStructure fs : sources) {
+			if (stringConditionRule.conditionSatisfied(fs)) ++satisfied;
+		}
+		return satisfied;
+	}
+
+	@Benchmark
+	public int doubleCondition() throws Exception {
+		int satisfied = 0;
+		for(FeatureStructure fs : sources) {
+			if (doubleConditionRule.conditionSatisfied(fs)) ++satisfied;
+		}
+		return satisfied;
+	}
+
+	@Benchmark
+	public void copyFeatures(Blackhole blackhole) throws Exception {
+		for(FeatureStructure fs : sources) {
+			blackhole.consume(copyRule.createTarget(fs, cas, sourceSlots));
+		}
+	}
+
+	@Benchmark
+	public void featureMaps(Blackhole blackhole) throws Exception {
+		for(FeatureStructure fs : sources) {
+			blackhole.consume(pathRule.createTarget(fs, cas, sourceSlots));
+		}
+	}
+
+	@Benchmark
+	public void extractDeepPath(Blackhole blackhole) throws Exception {
+		CompiledPath path = CompiledPath.compile(0, 
+				pathRule.getTypeMap().getFeatureMaps().get(0).getSourceFeaturePath(), 
+				pathRule.getSourceType());
+		for(FeatureStructure fs : sources) {
+			blackhole.consume(path.extract(fs).getValue());
+		}
+	}
+
+	@Benchmark
+	public void arrayGet(Blackhole blackhole) {
+		for(CommonArrayFS array : arrays) {
+			for(int i=0; i<arraySize; ++i) {
+				blackhole.consume(UimaUtils.getArrayValue(array, i));
+			}
+		}
+	}
+
+	@Benchmark
+	public void arrayExpand(Blackhole blackhole) {
+		for(CommonArrayFS array : arrays) {
+			blackhole.consume(UimaUtils.expandArray(cas, array, arraySize+1));
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.cas.CAS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+
+/**
+ * Throughput of applying a whole mapping to a CAS, with one rule per 
+ * category of the synthetic source annotations plus a numeric condition, a 
+ * deep source path and an unconditional copy.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessBenchmark {
+	@Param({"10000", "100000"})
+	int annotationCount;
+
+	@Param({"8"})
+	int featureCount;
+
+	@Param({"2"})
+	int pathDepth;
+
+	@Param({"4"})
+	int arraySize;
+
+	@Param({"SEQUENTIAL", "GROUPED"})
+	DispatchMode dispatchMode;
+
+	@Param({"IMMEDIATE", "PER_CAS"})
+	IndexingMode indexingMode;
+
+	private SyntheticCas synthetic;
+	private CAS cas;
+	private MappingPlan plan;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception {
+		synthetic = new SyntheticCas(featureCount, pathDepth, arraySize);
+		cas = synthetic.createCas();
+		StringBuilder mapping = new StringBuilder();
+		for(String category : SyntheticCas.CATEGORIES) {
+			mapping.append("bench.Source where category = \"").append(category)
+			.append("\" -> bench.").append(category).append(";\n");
+		}
+		mapping.append("bench.Source where score >= 0.9 -> bench.Target, ")
+		.append(synthetic.deepPath()).append(" -> value, ids[0] -> syn[0];\n");
+		mapping.append("bench.Source -> bench.Target;\n");
+		plan = MappingPlan.compile(TypeMapBuilder.build(mapping.toString()), cas.getTypeSystem(), 
+				false, false, dispatchMode, indexingMode);
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpInvocation() {
+		cas.reset();
+		synthetic.populate(cas, annotationCount);
+	}
+
+	@Benchmark
+	public int process() throws Exception {
+		return plan.apply(cas);
+	}
+}
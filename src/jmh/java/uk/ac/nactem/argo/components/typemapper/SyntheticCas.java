@@ -0,0 +1,153 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.StringArrayFS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+
+/**
+ * Synthetic type system and CAS content for the benchmarks.
+ * <p>
+ * <code>bench.Source</code> annotations carry a <code>category</code>, a 
+ * <code>score</code>, <code>featureCount</code> integer features shared with 
+ * <code>bench.Target</code>, an <code>ids</code> string array and a chain of 
+ * <code>bench.Node</code>s linked through <code>next</code>, 
+ * <code>pathDepth</code> deep.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class SyntheticCas {
+	static final String[] CATEGORIES = { "GENE", "CHEMICAL", "DISEASE", "SPECIES", "CELL", "OTHER" };
+
+	private final int featureCount;
+	private final int pathDepth;
+	private final int arraySize;
+
+	SyntheticCas(int featureCount, int pathDepth, int arraySize) {
+		this.featureCount = featureCount;
+		this.pathDepth = pathDepth;
+		this.arraySize = arraySize;
+	}
+
+	TypeSystemDescription typeSystemDescription() {
+		TypeSystemDescription tsd = UIMAFramework.getResourceSpecifierFactory().createTypeSystemDescription();
+		TypeDescription node = tsd.addType("bench.Node", "", CAS.TYPE_NAME_TOP);
+		node.addFeature("next", "", "bench.Node");
+		node.addFeature("value", "", CAS.TYPE_NAME_STRING);
+
+		TypeDescription source = tsd.addType("bench.Source", "", CAS.TYPE_NAME_ANNOTATION);
+		TypeDescription target = tsd.addType("bench.Target", "", CAS.TYPE_NAME_ANNOTATION);
+		for(TypeDescription type : new TypeDescription[] { source, target }) {
+			type.addFeature("category", "", CAS.TYPE_NAME_STRING);
+			type.addFeature("score", "", CAS.TYPE_NAME_DOUBLE);
+			type.addFeature("next", "", "bench.Node");
+		}
+		source.addFeature("ids", "", CAS.TYPE_NAME_STRING_ARRAY);
+		target.addFeature("syn", "", CAS.TYPE_NAME_STRING_ARRAY);
+		target.addFeature("label", "", CAS.TYPE_NAME_STRING);
+		target.addFeature("value", "", CAS.TYPE_NAME_STRING);
+		// Features copied as common features
+		for(int i=0; i<featureCount; ++i) {
+			source.addFeature("f"+i, "", CAS.TYPE_NAME_INTEGER);
+			target.addFeature("f"+i, "", CAS.TYPE_NAME_INTEGER);
+		}
+		for(int i=0; i<CATEGORIES.length; ++i) {
+			tsd.addType("bench."+CATEGORIES[i], "", CAS.TYPE_NAME_ANNOTATION);
+		}
+		return tsd;
+	}
+
+	CAS createCas() throws ResourceInitializationException {
+		return CasCreationUtils.createCas(typeSystemDescription(), null, null);
+	}
+
+	/**
+	 * Fills the CAS with the given number of source annotations.
+	 */
+	void populate(CAS cas, int annotationCount) {
+		TypeSystem ts = cas.getTypeSystem();
+		Type sourceType = ts.getType("bench.Source");
+		Type nodeType = ts.getType("bench.Node");
+		Feature category = sourceType.getFeatureByBaseName("category");
+		Feature score = sourceType.getFeatureByBaseName("score");
+		Feature ids = sourceType.getFeatureByBaseName("ids");
+		Feature next = sourceType.getFeatureByBaseName("next");
+		Feature nodeNext = nodeType.getFeatureByBaseName("next");
+		Feature nodeValue = nodeType.getFeatureByBaseName("value");
+		Feature[] features = new Feature[featureCount];
+		for(int i=0; i<featureCount; ++i) {
+			features[i] = sourceType.getFeatureByBaseName("f"+i);
+		}
+
+		cas.setDocumentText(documentText(annotationCount));
+		for(int a=0; a<annotationCount; ++a) {
+			AnnotationFS source = cas.createAnnotation(sourceType, a*6, a*6+5);
+			source.setStringValue(category, CATEGORIES[a%CATEGORIES.length]);
+			source.setDoubleValue(score, (a%100)/100.0);
+			for(int i=0; i<featureCount; ++i) {
+				source.setIntValue(features[i], a+i);
+			}
+			StringArrayFS array = cas.createStringArrayFS(arraySize);
+			for(int i=0; i<arraySize; ++i) {
+				array.set(i, "id"+a+"_"+i);
+			}
+			source.setFeatureValue(ids, array);
+
+			FeatureStructure holder = source;
+			Feature holderNext = next;
+			for(int d=0; d<pathDepth; ++d) {
+				FeatureStructure node = cas.createFS(nodeType);
+				node.setStringValue(nodeValue, "v"+a+"_"+d);
+				holder.setFeatureValue(holderNext, node);
+				holder = node;
+				holderNext = nodeNext;
+			}
+			cas.addFsToIndexes(source);
+		}
+	}
+
+	/**
+	 * Returns a feature path going <code>pathDepth</code> nodes deep, e.g. 
+	 * <code>next/next/value</code>.
+	 */
+	String deepPath() {
+		StringBuilder sb = new StringBuilder();
+		for(int d=0; d<pathDepth; ++d) {
+			sb.append("next/");
+		}
+		return sb.append("value").toString();
+	}
+
+	private static String documentText(int annotationCount) {
+		StringBuilder sb = new StringBuilder(annotationCount*6);
+		for(int a=0; a<annotationCount; ++a) {
+			sb.append("token ");
+		}
+		return sb.toString();
+	}
+}
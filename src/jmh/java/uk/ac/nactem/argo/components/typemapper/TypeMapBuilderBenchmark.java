@@ -0,0 +1,67 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to parse a mapping definition of a given number of rules.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TypeMapBuilderBenchmark {
+	@Param({"10", "200", "10000"})
+	int ruleCount;
+
+	private String mapping;
+
+	@Setup
+	public void setUp() {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<ruleCount; ++i) {
+			sb.append("ns.Source where category = \"C").append(i).append("\" -> ns.Target")
+			.append(", entity/norm/id -> meta/source/id, ids[").append(i%4).append("] -> syn[0]")
+			.append(", ").append(i).append(" -> rank;\n");
+		}
+		mapping = sb.toString();
+	}
+
+	@Benchmark
+	public List<TypeMap> build() throws Exception {
+		return TypeMapBuilder.build(mapping);
+	}
+}
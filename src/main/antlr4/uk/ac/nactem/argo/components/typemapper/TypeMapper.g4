@@ -17,7 +17,14 @@
  */
 grammar TypeMapper;
 
-maps : map ( ';' map)* ';'?  ;
+maps : statement ( ';' statement)* ';'?  ;
+
+statement : map | include ;
+
+// A statement with its separator, to parse a mapping one statement at a time
+separatedStatement : statement ( ';' | EOF ) ;
+
+include : 'include' STRING ;
 
 map : sourceTypeName condition? RIGHT_ARROW targetTypeName (',' featureMaps)? ;
 
@@ -25,13 +32,30 @@ sourceTypeName : QUALIFIED_ID ;
 
 targetTypeName : QUALIFIED_ID ;
 
-condition : 'where' featurePath COMPARISON_OPERATOR featureValue ;
+condition : 'where' disjunction ;
+
+disjunction : conjunction ( 'or' conjunction )* ;
+
+conjunction : negation ( 'and' negation )* ;
+
+negation : 'not' negation | '(' disjunction ')' | spanRelation | comparison ;
+
+spanRelation : relation=( 'coveredBy' | 'contains' | 'overlaps' ) '(' relatedTypeName ')' ;
+
+relatedTypeName : QUALIFIED_ID ;
+
+comparison : ( featurePath | function ) ( COMPARISON_OPERATOR featureValue | negated='not'? 'in' valueSet ) ;
+
+valueSet : '{' featureValue ( ',' featureValue )* '}' ;
 
 featurePath : pathFeature ( '/' pathFeature)* ;
 
 pathFeature : featureName (arrayIndex)? ;
 
-featureName : ID ;
+// Keywords are allowed as feature names, so that adding one does not break 
+// mappings of features of that name
+featureName : ID | 'where' | 'include' | 'and' | 'or' | 'not' | 'in' 
+	| 'coveredBy' | 'contains' | 'overlaps' ;
 
 arrayIndex : '[' INT ']' ;
 
@@ -43,11 +67,13 @@ coveredText : 'coveredText(' ')' ;
 
 featureMaps : featureMap (',' featureMap)* ;
 
-featureMap : (featureValue | featurePath) RIGHT_ARROW featurePath ;
+featureMap : (featureValue | featurePath | function) RIGHT_ARROW featurePath ;
 
 RIGHT_ARROW : '->' | '=>' ;
 
-COMPARISON_OPERATOR : '=' | '!=' | '>' | '<' | '>=' | '<=' ;
+SEMICOLON : ';' ;
+
+COMPARISON_OPERATOR : '=' | '!=' | '>' | '<' | '>=' | '<=' | '~' | '^=' | '$=' ;
 
 ID  :	('a'..'z'|'A'..'Z'|'_') ('a'..'z'|'A'..'Z'|'0'..'9'|'_')*
     ;
@@ -0,0 +1,342 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.nactem.argo.components.typemapper.TypeMap.ComparisonOperator;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.Condition;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.FeatureMap;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.FeaturePath;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.Function;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.LogicalOperator;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.SpanRelation;
+
+/**
+ * Compact binary form of parsed type maps, loaded without going through the 
+ * parser. Type names, feature names and string values are stored once in a 
+ * string table and referred to by position; numbers are stored as variable 
+ * length integers.
+ * <pre>
+ * mapping   : MAGIC VERSION strings count typeMap*
+ * strings   : count (length utf8Bytes)*
+ * typeMap   : sourceType targetType (0 | 1 condition) count featureMap*
+ * condition : 0 path operator value | 1 logicalOperator count condition* 
+ *           | 2 function operator value | 3 spanRelation relatedType
+ * featureMap: (0 path | 1 value | 2 function) path
+ * path      : count segment*, segment = featureName*2 | arrayIndex*2+1
+ * value     : 0 | 1 string | 2 int | 3 doubleBits | 4 count value*
+ * </pre>
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class BinaryMapping {
+	static final int MAGIC = 0x4E544D42; // "NTMB"
+	static final int VERSION = 7;
+
+	private static final int NO_VALUE = 0;
+	private static final int STRING_VALUE = 1;
+	private static final int INT_VALUE = 2;
+	private static final int DOUBLE_VALUE = 3;
+	private static final int LIST_VALUE = 4;
+
+	private BinaryMapping() {
+	}
+
+	/**
+	 * Tells whether the given bytes start with the header of the binary form.
+	 */
+	static boolean isBinary(byte[] data) {
+		return data.length>=4 && ((data[0]&0xff)<<24 | (data[1]&0xff)<<16 
+				| (data[2]&0xff)<<8 | (data[3]&0xff))==MAGIC;
+	}
+
+	static void write(List<TypeMap> typeMaps, OutputStream os) throws IOException {
+		Writer writer = new Writer();
+		for(TypeMap typeMap : typeMaps) {
+			writer.typeMap(typeMap);
+		}
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		writeVarInt(out, VERSION);
+		writeVarInt(out, writer.strings.size());
+		for(String string : writer.strings) {
+			byte[] bytes = string.getBytes("UTF-8");
+			writeVarInt(out, bytes.length);
+			out.write(bytes);
+		}
+		writeVarInt(out, typeMaps.size());
+		writer.body.writeTo(out);
+		out.flush();
+	}
+
+	static List<TypeMap> read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt()!=MAGIC) {
+			throw new IOException("Not a compiled type mapping.");
+		}
+		int version = readVarInt(in);
+		if (version!=VERSION) {
+			throw new IOException("Unsupported compiled type mapping version "+version+
+					", expected "+VERSION+"; recompile the mapping.");
+		}
+		String[] strings = new String[readVarInt(in)];
+		byte[] buffer = new byte[64];
+		for(int i=0; i<strings.length; ++i) {
+			int length = readVarInt(in);
+			if (length>buffer.length) {
+				buffer = new byte[Math.max(length, buffer.length*2)];
+			}
+			in.readFully(buffer, 0, length);
+			strings[i] = new String(buffer, 0, length, "UTF-8");
+		}
+		int count = readVarInt(in);
+		List<TypeMap> typeMaps = new ArrayList<TypeMap>(count);
+		for(int i=0; i<count; ++i) {
+			TypeMap typeMap = new TypeMap(strings[readVarInt(in)], strings[readVarInt(in)]);
+			if (in.readByte()!=0) {
+				typeMap.setCondition(readCondition(in, strings));
+			}
+			int featureMapCount = readVarInt(in);
+			List<FeatureMap> featureMaps = new ArrayList<FeatureMap>(featureMapCount);
+			for(int j=0; j<featureMapCount; ++j) {
+				int kind = in.readByte();
+				if (kind==0) {
+					FeaturePath sourcePath = readPath(in, strings);
+					featureMaps.add(new FeatureMap(sourcePath, readPath(in, strings)));
+				}
+				else if (kind==2) {
+					Function function = Function.values()[in.readByte()];
+					featureMaps.add(new FeatureMap(function, readPath(in, strings)));
+				}
+				else {
+					Object value = readValue(in, strings);
+					featureMaps.add(new FeatureMap(value, readPath(in, strings)));
+				}
+			}
+			typeMap.setFeatureMaps(featureMaps);
+			typeMaps.add(typeMap);
+		}
+		return typeMaps;
+	}
+
+	private static Condition readCondition(DataInputStream in, String[] strings) throws IOException {
+		int kind = in.readByte();
+		if (kind==1) {
+			LogicalOperator operator = LogicalOperator.values()[in.readByte()];
+			int count = readVarInt(in);
+			List<Condition> operands = new ArrayList<Condition>(count);
+			for(int i=0; i<count; ++i) {
+				operands.add(readCondition(in, strings));
+			}
+			return new Condition(operator, operands);
+		}
+		if (kind==3) {
+			SpanRelation relation = SpanRelation.values()[in.readByte()];
+			return new Condition(relation, strings[readVarInt(in)]);
+		}
+		Condition condition = new Condition();
+		if (kind==2) {
+			condition.setFunction(Function.values()[in.readByte()]);
+		}
+		else {
+			condition.setFeaturePath(readPath(in, strings));
+		}
+		condition.setComparisonOperator(ComparisonOperator.values()[in.readByte()]);
+		condition.setValue(readValue(in, strings));
+		return condition;
+	}
+
+	private static FeaturePath readPath(DataInputStream in, String[] strings) throws IOException {
+		int size = readVarInt(in);
+		FeaturePath path = new FeaturePath();
+		for(int i=0; i<size; ++i) {
+			int segment = readVarInt(in);
+			if ((segment&1)==0) {
+				path.add(strings[segment>>>1]);
+			}
+			else {
+				path.add(Integer.valueOf(segment>>>1));
+			}
+		}
+		return path;
+	}
+
+	private static Object readValue(DataInputStream in, String[] strings) throws IOException {
+		switch(in.readByte()) {
+		case STRING_VALUE:
+			return strings[readVarInt(in)];
+		case INT_VALUE:
+			return Integer.valueOf(in.readInt());
+		case DOUBLE_VALUE:
+			return Double.valueOf(in.readDouble());
+		case LIST_VALUE:
+			int size = readVarInt(in);
+			List<Object> values = new ArrayList<Object>(size);
+			for(int i=0; i<size; ++i) {
+				values.add(readValue(in, strings));
+			}
+			return values;
+		default:
+			return null;
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while((value & ~0x7f)!=0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for(int shift=0; shift<32; shift+=7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f)<<shift;
+			if ((b & 0x80)==0) return value;
+		}
+		throw new EOFException("Malformed compiled type mapping.");
+	}
+
+	/**
+	 * Writes the type maps into a buffer while collecting the string table, 
+	 * which has to be written first.
+	 */
+	private static class Writer {
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(body);
+
+		void typeMap(TypeMap typeMap) throws IOException {
+			writeVarInt(out, string(typeMap.getSourceTypeName()));
+			writeVarInt(out, string(typeMap.getTargetTypeName()));
+			Condition condition = typeMap.getCondition();
+			if (condition==null) {
+				out.writeByte(0);
+			}
+			else {
+				out.writeByte(1);
+				condition(condition);
+			}
+			writeVarInt(out, typeMap.getFeatureMaps().size());
+			for(FeatureMap featureMap : typeMap.getFeatureMaps()) {
+				if (featureMap.assignsValueDirectly()) {
+					out.writeByte(1);
+					value(featureMap.getAssigneableValue());
+				}
+				else if (featureMap.getSourceFunction()!=null) {
+					out.writeByte(2);
+					out.writeByte(featureMap.getSourceFunction().ordinal());
+				}
+				else {
+					out.writeByte(0);
+					path(featureMap.getSourceFeaturePath());
+				}
+				path(featureMap.getTargetFeaturePath());
+			}
+		}
+
+		private void condition(Condition condition) throws IOException {
+			if (condition.isCompound()) {
+				out.writeByte(1);
+				out.writeByte(condition.getLogicalOperator().ordinal());
+				writeVarInt(out, condition.getOperands().size());
+				for(Condition operand : condition.getOperands()) {
+					condition(operand);
+				}
+			}
+			else if (condition.getSpanRelation()!=null) {
+				out.writeByte(3);
+				out.writeByte(condition.getSpanRelation().ordinal());
+				writeVarInt(out, string(condition.getRelatedTypeName()));
+			}
+			else {
+				if (condition.getFunction()!=null) {
+					out.writeByte(2);
+					out.writeByte(condition.getFunction().ordinal());
+				}
+				else {
+					out.writeByte(0);
+					path(condition.getFeaturePath());
+				}
+				out.writeByte(condition.getComparisonOperator().ordinal());
+				value(condition.getValue());
+			}
+		}
+
+		private void path(FeaturePath path) throws IOException {
+			writeVarInt(out, path.size());
+			for(Object segment : path) {
+				if (segment instanceof Integer) {
+					writeVarInt(out, ((Integer) segment)<<1 | 1);
+				}
+				else {
+					writeVarInt(out, string((String) segment)<<1);
+				}
+			}
+		}
+
+		private void value(Object value) throws IOException {
+			if (value instanceof String) {
+				out.writeByte(STRING_VALUE);
+				writeVarInt(out, string((String) value));
+			}
+			else if (value instanceof Integer) {
+				out.writeByte(INT_VALUE);
+				out.writeInt((Integer) value);
+			}
+			else if (value instanceof Double) {
+				out.writeByte(DOUBLE_VALUE);
+				out.writeDouble((Double) value);
+			}
+			else if (value instanceof List) {
+				out.writeByte(LIST_VALUE);
+				writeVarInt(out, ((List<?>) value).size());
+				for(Object element : (List<?>) value) {
+					value(element);
+				}
+			}
+			else {
+				out.writeByte(NO_VALUE);
+			}
+		}
+
+		private int string(String string) {
+			Integer index = stringIndexes.get(string);
+			if (index==null) {
+				index = strings.size();
+				strings.add(string);
+				stringIndexes.put(string, index);
+			}
+			return index;
+		}
+	}
+}
@@ -0,0 +1,462 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.BooleanArrayFS;
+import org.apache.uima.cas.ByteArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CommonArrayFS;
+import org.apache.uima.cas.DoubleArrayFS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.FloatArrayFS;
+import org.apache.uima.cas.IntArrayFS;
+import org.apache.uima.cas.LongArrayFS;
+import org.apache.uima.cas.ShortArrayFS;
+import org.apache.uima.cas.StringArrayFS;
+import org.apache.uima.cas.Type;
+
+import uk.ac.nactem.argo.components.typemapper.FSReference.ArrayReference;
+import uk.ac.nactem.argo.components.typemapper.FSReference.FSFeatureReference;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.InvalidFeaturePath;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.FeaturePath;
+
+/**
+ * A {@link FeaturePath} whose segments have been resolved against the 
+ * type system once, so that walking it does not look features up by name.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class CompiledPath {
+	private final int mapNumber;
+	private final FeaturePath path;
+	// Per segment: the feature resolved from the static type, or null for 
+	// array indexes and for features only defined in subtypes of the range.
+	private final Feature[] features;
+	// Per segment: the range of the feature, or of the array elements for 
+	// array indexes, if resolved statically.
+	private final FeatureRange[] ranges;
+	private final String[] featureNames;
+	private final int[] arrayIndexes;
+	// Per array index segment: the length of the array to create, or expand 
+	// to, when writing through the path
+	private final int[] arrayLengths;
+	// Range of the value the path leads to, if it can be determined statically
+	private FeatureRange leafRange;
+
+	private CompiledPath(int mapNumber, FeaturePath path) {
+		this.mapNumber = mapNumber;
+		this.path = path;
+		this.features = new Feature[path.size()];
+		this.ranges = new FeatureRange[path.size()];
+		this.featureNames = new String[path.size()];
+		this.arrayIndexes = new int[path.size()];
+		this.arrayLengths = new int[path.size()];
+	}
+
+	/**
+	 * Resolves the segments of the given path, starting from the type of the 
+	 * feature structures it will be applied to. Any feature structure reached 
+	 * at runtime is of the resolved range type or one of its subtypes, hence 
+	 * the resolved features are always valid for it.
+	 */
+	static CompiledPath compile(int mapNumber, FeaturePath path, Type rootType) {
+		CompiledPath compiled = new CompiledPath(mapNumber, path);
+		Type type = rootType;
+		for(int i=0; i<path.size(); ++i) {
+			if (path.isArrayIndex(i)) {
+				compiled.arrayIndexes[i] = (Integer) path.get(i);
+				compiled.arrayLengths[i] = compiled.arrayIndexes[i]+1;
+				type = type!=null && type.isArray()? type.getComponentType() : null;
+				compiled.ranges[i] = type!=null? FeatureRange.of(type) : null;
+			}
+			else {
+				String featName = (String) path.get(i);
+				Feature feature = type!=null? type.getFeatureByBaseName(featName) : null;
+				compiled.featureNames[i] = featName;
+				compiled.features[i] = feature;
+				compiled.ranges[i] = feature!=null? FeatureRange.of(feature) : null;
+				compiled.arrayIndexes[i] = -1;
+				type = feature!=null? feature.getRange() : null;
+			}
+		}
+		compiled.leafRange = type!=null? FeatureRange.of(type) : null;
+		return compiled;
+	}
+
+	/**
+	 * Sizes the arrays created when writing through the given paths, all 
+	 * applied to the same feature structure, to the largest index any of 
+	 * them writes into the same array. Each array is then created at its 
+	 * final length rather than regrown, and copied, for every larger index.
+	 */
+	static void presizeArrays(CompiledPath[] paths) {
+		Map<String, Integer> lengths = new HashMap<String, Integer>();
+		for(CompiledPath path : paths) {
+			for(int i=0; i<path.arrayIndexes.length; ++i) {
+				if (path.arrayIndexes[i]<0) continue;
+				String array = path.path.toString(i);
+				Integer length = lengths.get(array);
+				if (length==null || length<path.arrayLengths[i]) {
+					lengths.put(array, path.arrayLengths[i]);
+				}
+			}
+		}
+		for(CompiledPath path : paths) {
+			for(int i=0; i<path.arrayIndexes.length; ++i) {
+				if (path.arrayIndexes[i]<0) continue;
+				path.arrayLengths[i] = lengths.get(path.path.toString(i));
+			}
+		}
+	}
+
+	FeaturePath getFeaturePath() {
+		return path;
+	}
+
+	int size() {
+		return features.length;
+	}
+
+	/**
+	 * Tells whether walking the path may fail, which is the case unless it 
+	 * is a single feature defined for the type it was compiled for.
+	 */
+	boolean canFail() {
+		return features.length!=1 || features[0]==null;
+	}
+
+	/**
+	 * Returns the range of the value the path leads to, or null if it 
+	 * depends on the runtime types of the feature structures on the path.
+	 */
+	FeatureRange getLeafRange() {
+		return leafRange;
+	}
+
+	FSReference extract(FeatureStructure fs) throws InvalidFeaturePath {
+		return extract(fs, null);
+	}
+
+	/**
+	 * Walks the path from the given feature structure. If a CAS is supplied, 
+	 * missing intermediate feature structures and arrays are created (or 
+	 * expanded) on the way.
+	 */
+	FSReference extract(FeatureStructure fs, CAS cas) throws InvalidFeaturePath {
+		FSReference ref = reference(fs, null, 0, cas);
+		for(int pathIndex=1; pathIndex<features.length; ++pathIndex) {
+			ref = reference(follow(ref, pathIndex, cas), ref, pathIndex, cas);
+		}
+		return ref;
+	}
+
+	/**
+	 * Returns the feature structure the reference to the segment before the 
+	 * given one leads to. If a CAS is supplied and there is none, it is 
+	 * created and assigned to the reference.
+	 */
+	FeatureStructure follow(FSReference ref, int pathIndex, CAS cas) throws InvalidFeaturePath {
+		if (ref.isValueTypePrimitive()) {
+			throw new InvalidFeaturePath(mapNumber, path, "Unexpected segment after '"+path.toString(pathIndex)+"' whose range is primitive");
+		}
+		FeatureStructure fs = (FeatureStructure) ref.getValue();
+
+		if (fs==null) {
+			// Proceed only if a CAS is supplied. 
+			if (cas==null) {
+				throw new InvalidFeaturePath(mapNumber, path, "Intermediate type "+ref.getFSType()+" returned null for feature "+ref.featureSegmentToString());
+			}
+
+			Type valueType = ref.getValueType();
+			if (valueType.isArray()) {
+				if (arrayIndexes[pathIndex]<0) {
+					throw new InvalidFeaturePath(mapNumber, path, "Expected array reference; found '"+path.toString(pathIndex+1)+"'");
+				}
+				// Create an array large enough for all indexes written.
+				FeatureRange elementRange = ranges[pathIndex];
+				fs = elementRange!=null? 
+						elementRange.createArray(cas, arrayLengths[pathIndex]) : 
+						UimaUtils.createArray(cas, valueType, arrayLengths[pathIndex]);
+			}
+			else {
+				fs = cas.createFS(valueType);
+			}
+			ref.setValue(fs);
+		}
+		return fs;
+	}
+
+	/**
+	 * Returns the reference to the given segment of the feature structure 
+	 * holding it, given the reference the holder was found through (if any). 
+	 * If a CAS is supplied, an array too short for the index is expanded 
+	 * and assigned to the latter reference.
+	 */
+	FSReference reference(FeatureStructure holder, FSReference ref, int pathIndex, CAS cas) 
+			throws InvalidFeaturePath {
+		int arrayIndex = arrayIndexes[pathIndex];
+		if (arrayIndex>=0) { // ref would have been set here
+			Type fsType = holder.getType();
+			if (!fsType.isArray()) {
+				throw new InvalidFeaturePath(mapNumber, path, "Unexpected array reference '"+path.toString(pathIndex+1)+"' - corresponding type is "+fsType);
+			}
+			if (arrayIndex>=((CommonArrayFS) holder).size()) { 
+				if (cas==null) {
+					throw new InvalidFeaturePath(mapNumber, path, "Index out of bounds in "+path.toString(pathIndex+1));
+				}
+
+				holder = UimaUtils.expandArray(cas, (CommonArrayFS) holder, arrayLengths[pathIndex]);
+				ref.setValue(holder);
+			}
+			FeatureRange elementRange = ranges[pathIndex];
+			if (elementRange==null) {
+				elementRange = FeatureRange.ofElements((CommonArrayFS) holder);
+			}
+			return new ArrayReference((CommonArrayFS) holder, arrayIndex, (FSFeatureReference) ref, elementRange);
+		}
+		Feature feature = features[pathIndex];
+		if (feature!=null) {
+			return new FSFeatureReference(holder, feature, ranges[pathIndex]);
+		}
+		Type fsType = holder.getType();
+		feature = fsType.getFeatureByBaseName(featureNames[pathIndex]);
+		if (feature==null) {
+			throw new InvalidFeaturePath(mapNumber, path, "Feature '"+featureNames[pathIndex]+"' is not defined for type "+fsType);
+		}
+		return new FSFeatureReference(holder, feature);
+	}
+
+	/**
+	 * Returns the feature structure the given segment of the given holder 
+	 * refers to, or null if there is none or the segment cannot be followed 
+	 * from the holder. Nothing is allocated other than by the CAS.
+	 */
+	FeatureStructure valueAt(FeatureStructure holder, int pathIndex) {
+		int arrayIndex = arrayIndexes[pathIndex];
+		if (arrayIndex>=0) {
+			if (!(holder instanceof ArrayFS) || arrayIndex>=((ArrayFS) holder).size()) {
+				return null;
+			}
+			return ((ArrayFS) holder).get(arrayIndex);
+		}
+		Feature feature = features[pathIndex];
+		if (feature==null) {
+			feature = holder.getType().getFeatureByBaseName(featureNames[pathIndex]);
+			if (feature==null) {
+				return null;
+			}
+		}
+		if (feature.getRange().isPrimitive()) {
+			return null;
+		}
+		return holder.getFeatureValue(feature);
+	}
+
+	/**
+	 * Copies the value of the last segment of the path, read from the 
+	 * feature structure holding it, into the given reference without 
+	 * creating a reference to the source. Values of the same range are 
+	 * copied without being boxed.
+	 * 
+	 * @return false if the last segment cannot be read from the holder
+	 */
+	boolean copyLast(FeatureStructure holder, FSReference target) {
+		int last = features.length-1;
+		int arrayIndex = arrayIndexes[last];
+		if (arrayIndex>=0) {
+			if (!holder.getType().isArray() || arrayIndex>=((CommonArrayFS) holder).size()) {
+				return false;
+			}
+			FeatureRange elementRange = ranges[last];
+			if (elementRange==null) {
+				elementRange = FeatureRange.ofElements((CommonArrayFS) holder);
+			}
+			target.setValue(elementRange.getElement((CommonArrayFS) holder, arrayIndex));
+			return true;
+		}
+		Feature feature = features[last];
+		FeatureRange range = ranges[last];
+		if (feature==null) {
+			feature = holder.getType().getFeatureByBaseName(featureNames[last]);
+			if (feature==null) {
+				return false;
+			}
+			range = FeatureRange.of(feature);
+		}
+		if (target instanceof FSFeatureReference) {
+			((FSFeatureReference) target).copyValueFrom(holder, feature, range);
+		}
+		else {
+			target.setValue(range.get(holder, feature));
+		}
+		return true;
+	}
+
+	/**
+	 * Walks the path from the given feature structure up to the feature 
+	 * structure holding the last segment, that is, either the feature 
+	 * structure owning the last feature or the array indexed last. Unlike 
+	 * {@link #extract(FeatureStructure)}, no references are created on the 
+	 * way.
+	 */
+	private FeatureStructure navigate(FeatureStructure fs) throws InvalidFeaturePath {
+		FeatureStructure holder = fs;
+		for(int pathIndex=0; pathIndex<features.length-1; ++pathIndex) {
+			FeatureStructure value;
+			int arrayIndex = arrayIndexes[pathIndex];
+			if (arrayIndex>=0) {
+				checkArrayIndex(holder, pathIndex);
+				if (!(holder instanceof ArrayFS)) {
+					throw new InvalidFeaturePath(mapNumber, path, "Unexpected segment after '"+path.toString(pathIndex+1)+"' whose range is primitive");
+				}
+				value = ((ArrayFS) holder).get(arrayIndex);
+			}
+			else {
+				Feature feature = resolveFeature(holder, pathIndex);
+				if (feature.getRange().isPrimitive()) {
+					throw new InvalidFeaturePath(mapNumber, path, "Unexpected segment after '"+path.toString(pathIndex+1)+"' whose range is primitive");
+				}
+				value = holder.getFeatureValue(feature);
+			}
+			if (value==null) {
+				throw new InvalidFeaturePath(mapNumber, path, "Intermediate type "+holder.getType()+" returned null for "+path.toString(pathIndex+1));
+			}
+			holder = value;
+		}
+		return holder;
+	}
+
+	private Feature resolveFeature(FeatureStructure holder, int pathIndex) throws InvalidFeaturePath {
+		Feature feature = features[pathIndex];
+		if (feature==null) {
+			Type fsType = holder.getType();
+			feature = fsType.getFeatureByBaseName(featureNames[pathIndex]);
+			if (feature==null) {
+				throw new InvalidFeaturePath(mapNumber, path, "Feature '"+featureNames[pathIndex]+"' is not defined for type "+fsType);
+			}
+		}
+		return feature;
+	}
+
+	private void checkArrayIndex(FeatureStructure holder, int pathIndex) throws InvalidFeaturePath {
+		if (!holder.getType().isArray()) {
+			throw new InvalidFeaturePath(mapNumber, path, "Unexpected array reference '"+path.toString(pathIndex+1)+"' - corresponding type is "+holder.getType());
+		}
+		if (arrayIndexes[pathIndex]>=((CommonArrayFS) holder).size()) {
+			throw new InvalidFeaturePath(mapNumber, path, "Index out of bounds in "+path.toString(pathIndex+1));
+		}
+	}
+
+	// Typed reads of the value the path leads to; only valid for paths 
+	// whose leaf range is known statically.
+
+	long readLong(FeatureStructure fs) throws InvalidFeaturePath {
+		FeatureStructure holder = navigate(fs);
+		int last = features.length-1;
+		if (arrayIndexes[last]>=0) {
+			checkArrayIndex(holder, last);
+			int index = arrayIndexes[last];
+			switch(leafRange) {
+			case INTEGER:
+				return ((IntArrayFS) holder).get(index);
+			case LONG:
+				return ((LongArrayFS) holder).get(index);
+			case SHORT:
+				return ((ShortArrayFS) holder).get(index);
+			case BYTE:
+				return ((ByteArrayFS) holder).get(index);
+			default:
+				break;
+			}
+		}
+		else {
+			Feature feature = resolveFeature(holder, last);
+			switch(leafRange) {
+			case INTEGER:
+				return holder.getIntValue(feature);
+			case LONG:
+				return holder.getLongValue(feature);
+			case SHORT:
+				return holder.getShortValue(feature);
+			case BYTE:
+				return holder.getByteValue(feature);
+			default:
+				break;
+			}
+		}
+		throw new IllegalStateException("Not an integral path: "+path);
+	}
+
+	float readFloat(FeatureStructure fs) throws InvalidFeaturePath {
+		FeatureStructure holder = navigate(fs);
+		int last = features.length-1;
+		if (arrayIndexes[last]>=0) {
+			checkArrayIndex(holder, last);
+			return ((FloatArrayFS) holder).get(arrayIndexes[last]);
+		}
+		return holder.getFloatValue(resolveFeature(holder, last));
+	}
+
+	double readDouble(FeatureStructure fs) throws InvalidFeaturePath {
+		switch(leafRange) {
+		case DOUBLE:
+			break;
+		case FLOAT:
+			return readFloat(fs);
+		default:
+			return readLong(fs);
+		}
+		FeatureStructure holder = navigate(fs);
+		int last = features.length-1;
+		if (arrayIndexes[last]>=0) {
+			checkArrayIndex(holder, last);
+			return ((DoubleArrayFS) holder).get(arrayIndexes[last]);
+		}
+		return holder.getDoubleValue(resolveFeature(holder, last));
+	}
+
+	String readString(FeatureStructure fs) throws InvalidFeaturePath {
+		FeatureStructure holder = navigate(fs);
+		int last = features.length-1;
+		if (arrayIndexes[last]>=0) {
+			checkArrayIndex(holder, last);
+			return ((StringArrayFS) holder).get(arrayIndexes[last]);
+		}
+		return holder.getStringValue(resolveFeature(holder, last));
+	}
+
+	boolean readBoolean(FeatureStructure fs) throws InvalidFeaturePath {
+		FeatureStructure holder = navigate(fs);
+		int last = features.length-1;
+		if (arrayIndexes[last]>=0) {
+			checkArrayIndex(holder, last);
+			return ((BooleanArrayFS) holder).get(arrayIndexes[last]);
+		}
+		return holder.getBooleanValue(resolveFeature(holder, last));
+	}
+
+	@Override
+	public String toString() {
+		return path.toString();
+	}
+}
@@ -0,0 +1,1180 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IncompatibleTypeComparison;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.InvalidFeaturePath;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.InvalidPattern;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.TypeMapperException;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.UndefinedType;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.ComparisonOperator;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.Condition;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.LogicalOperator;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.SpanRelation;
+
+/**
+ * A {@link Condition} compiled into a predicate specialised for the range of 
+ * the feature it tests. The value compared against is coerced and checked 
+ * when the condition is compiled, so testing a feature structure neither 
+ * boxes the feature value nor allocates.
+ * <p>
+ * Logical combinations of conditions are compiled into trees of predicates 
+ * evaluated with short-circuit, which have neither a path nor an operator.
+ * Neither have span relations, which are tested against an index of the 
+ * related annotations built once for the CAS.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+abstract class ConditionPlan {
+	protected final CompiledPath path;
+	protected final ComparisonOperator operator;
+
+	ConditionPlan(CompiledPath path, ComparisonOperator operator) {
+		this.path = path;
+		this.operator = operator;
+	}
+
+	abstract boolean test(FeatureStructure fs) throws IncompatibleTypeComparison, InvalidFeaturePath;
+
+	/**
+	 * Tests a feature structure, looking up span relations in the span 
+	 * indexes of its CAS, or in indexes built for this test only if null.
+	 */
+	boolean test(FeatureStructure fs, SpanIndex.Cache spans) 
+			throws IncompatibleTypeComparison, InvalidFeaturePath {
+		return test(fs);
+	}
+
+	/**
+	 * Adds the types whose annotations the condition relates the source 
+	 * annotation to.
+	 */
+	void addRelatedTypes(Collection<Type> types) {
+	}
+
+	/**
+	 * Estimated cost of testing a feature structure, in features read.
+	 */
+	double cost() {
+		return path.size();
+	}
+
+	/**
+	 * Estimated probability that a feature structure satisfies the 
+	 * condition, assuming equality is selective.
+	 */
+	double probability() {
+		switch(operator) {
+		case EQUAL:
+			return 0.1;
+		case NOT_EQUAL:
+			return 0.9;
+		case IN:
+		case MATCHES:
+		case STARTS_WITH:
+		case ENDS_WITH:
+			return 0.2;
+		case NOT_IN:
+			return 0.8;
+		default:
+			return 0.5;
+		}
+	}
+
+	/**
+	 * Tells whether testing a feature structure may raise an exception.
+	 */
+	boolean canFail() {
+		return path.canFail();
+	}
+
+	CompiledPath getPath() {
+		return path;
+	}
+
+	ComparisonOperator getOperator() {
+		return operator;
+	}
+
+	/**
+	 * Compiles the condition for feature structures of the given type. 
+	 * Integral features are compared to integral values exactly; comparisons 
+	 * involving a floating point value on either side are carried out in the 
+	 * precision of the feature (float or double), widening integral features.
+	 */
+	static ConditionPlan compile(int mapNumber, Condition condition, Type sourceType, TypeSystem ts) 
+			throws TypeMapperException {
+		if (condition.isCompound()) {
+			return compileLogical(mapNumber, condition, sourceType, ts);
+		}
+		if (condition.getSpanRelation()!=null) {
+			Type relatedType = ts.getType(condition.getRelatedTypeName());
+			if (relatedType==null) {
+				throw new UndefinedType(mapNumber, "Related", condition.getRelatedTypeName());
+			}
+			if (!CoveredText.isAnnotationType(sourceType) || !CoveredText.isAnnotationType(relatedType)) {
+				throw new IncompatibleTypeComparison(mapNumber, condition);
+			}
+			return new SpanCondition(condition.getSpanRelation(), relatedType);
+		}
+		if (condition.getFunction()!=null) {
+			return compileFunction(mapNumber, condition, sourceType);
+		}
+		CompiledPath path = CompiledPath.compile(mapNumber, condition.getFeaturePath(), sourceType);
+		ComparisonOperator operator = condition.getComparisonOperator();
+		Object value = condition.getValue();
+		FeatureRange range = path.getLeafRange();
+		if (operator.isStringMatch()) {
+			if (!(value instanceof String) || (range!=null && range!=FeatureRange.STRING)) {
+				throw new IncompatibleTypeComparison(mapNumber, condition);
+			}
+			return compileStringMatch(mapNumber, condition, path);
+		}
+		if (range==null) {
+			return new DynamicCondition(mapNumber, condition, path);
+		}
+		if (value instanceof List) {
+			ConditionPlan plan = compileSet(path, operator, (List<?>) value, range);
+			if (plan==null) {
+				throw new IncompatibleTypeComparison(mapNumber, condition);
+			}
+			return plan;
+		}
+		switch(range) {
+		case STRING:
+			if (value instanceof String) {
+				return new StringCondition(path, operator, (String) value);
+			}
+			break;
+		case BOOLEAN:
+			if ("true".equals(value) || "false".equals(value)) {
+				return new BooleanCondition(path, operator, Boolean.parseBoolean((String) value));
+			}
+			break;
+		case INTEGER:
+		case LONG:
+		case SHORT:
+		case BYTE:
+			if (value instanceof Integer) {
+				return new LongCondition(path, operator, (Integer) value);
+			}
+			if (value instanceof Double) {
+				return new DoubleCondition(path, operator, (Double) value);
+			}
+			break;
+		case FLOAT:
+			if (value instanceof Number) {
+				return new FloatCondition(path, operator, ((Number) value).floatValue());
+			}
+			break;
+		case DOUBLE:
+			if (value instanceof Integer) {
+				return new DoubleCondition(path, operator, (Integer) value);
+			}
+			if (value instanceof Double) {
+				return new DoubleCondition(path, operator, (Double) value);
+			}
+			break;
+		case FS:
+			break;
+		}
+		throw new IncompatibleTypeComparison(mapNumber, condition);
+	}
+
+	/**
+	 * Compiles a set membership condition into a hash set of strings or a 
+	 * sorted array of primitive values, coercing the values as comparisons 
+	 * do; values which no feature value can equal, e.g. 1.5 for an integral 
+	 * feature, are left out. Returns null if a value is incompatible with 
+	 * the range of the feature.
+	 */
+	private static ConditionPlan compileSet(CompiledPath path, ComparisonOperator operator, 
+			List<?> values, FeatureRange range) {
+		switch(range) {
+		case STRING:
+			Set<String> strings = new HashSet<String>();
+			for(Object value : values) {
+				if (!(value instanceof String)) return null;
+				strings.add((String) value);
+			}
+			return new StringSetCondition(path, operator, strings);
+		case BOOLEAN:
+			boolean[] accepted = new boolean[2];
+			for(Object value : values) {
+				if (!"true".equals(value) && !"false".equals(value)) return null;
+				accepted["true".equals(value)? 1 : 0] = true;
+			}
+			return new BooleanSetCondition(path, operator, accepted[0], accepted[1]);
+		case INTEGER:
+		case LONG:
+		case SHORT:
+		case BYTE:
+			long[] longs = new long[values.size()];
+			int longCount = 0;
+			for(Object value : values) {
+				if (value instanceof Integer) {
+					longs[longCount++] = (Integer) value;
+				}
+				else if (value instanceof Double) {
+					double doubleValue = (Double) value;
+					if (doubleValue==Math.rint(doubleValue)) 
+						longs[longCount++] = (long) doubleValue;
+				}
+				else {
+					return null;
+				}
+			}
+			return new LongSetCondition(path, operator, Arrays.copyOf(longs, longCount));
+		case FLOAT:
+			float[] floats = new float[values.size()];
+			for(int i=0; i<floats.length; ++i) {
+				if (!(values.get(i) instanceof Number)) return null;
+				floats[i] = ((Number) values.get(i)).floatValue();
+			}
+			return new FloatSetCondition(path, operator, floats);
+		case DOUBLE:
+			double[] doubles = new double[values.size()];
+			for(int i=0; i<doubles.length; ++i) {
+				Object value = values.get(i);
+				if (value instanceof Integer) {
+					doubles[i] = (Integer) value;
+				}
+				else if (value instanceof Double) {
+					doubles[i] = (Double) value;
+				}
+				else {
+					return null;
+				}
+			}
+			return new DoubleSetCondition(path, operator, doubles);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Compiles a string match. Regular expressions which only consist of 
+	 * literal characters, possibly anchored, are compiled into tests of 
+	 * prefixes, suffixes, contained keywords or equality, which rules on the 
+	 * same feature can share in a {@link KeywordTrie}.
+	 */
+	private static ConditionPlan compileStringMatch(int mapNumber, Condition condition, CompiledPath path) 
+			throws InvalidPattern {
+		String pattern = (String) condition.getValue();
+		LiteralMatch match = LiteralMatch.of(condition.getComparisonOperator(), pattern);
+		if (match!=null) {
+			switch(match.operator) {
+			case EQUAL:
+				if (path.getLeafRange()==FeatureRange.STRING) {
+					return new StringCondition(path, ComparisonOperator.EQUAL, match.literal);
+				}
+				break;
+			case STARTS_WITH:
+				return new PrefixCondition(mapNumber, condition, path, match.literal);
+			case ENDS_WITH:
+				return new SuffixCondition(mapNumber, condition, path, match.literal);
+			default:
+				return new KeywordCondition(mapNumber, condition, path, match.literal);
+			}
+		}
+		try {
+			return new RegexCondition(mapNumber, condition, path, Pattern.compile(pattern));
+		} catch (PatternSyntaxException e) {
+			throw new InvalidPattern(mapNumber, condition, e.getDescription());
+		}
+	}
+
+	/**
+	 * Compiles a condition on the text covered by annotations of the source 
+	 * type.
+	 */
+	private static ConditionPlan compileFunction(int mapNumber, Condition condition, Type sourceType) 
+			throws IncompatibleTypeComparison, InvalidPattern {
+		Object value = condition.getValue();
+		if (!CoveredText.isAnnotationType(sourceType) || !isStrings(value)) {
+			throw new IncompatibleTypeComparison(mapNumber, condition);
+		}
+		ComparisonOperator operator = condition.getComparisonOperator();
+		if (value instanceof List) {
+			Set<String> values = new HashSet<String>();
+			for(Object element : (List<?>) value) {
+				values.add((String) element);
+			}
+			return new CoveredTextCondition(operator, CoveredTextCondition.SET, null, values, null);
+		}
+		if (operator.isStringMatch()) {
+			LiteralMatch match = LiteralMatch.of(operator, (String) value);
+			if (match==null) {
+				try {
+					return new CoveredTextCondition(operator, CoveredTextCondition.REGEX, null, null, 
+							Pattern.compile((String) value));
+				} catch (PatternSyntaxException e) {
+					throw new InvalidPattern(mapNumber, condition, e.getDescription());
+				}
+			}
+			switch(match.operator) {
+			case EQUAL:
+				return new CoveredTextCondition(ComparisonOperator.EQUAL, CoveredTextCondition.COMPARISON, 
+						match.literal, null, null);
+			case STARTS_WITH:
+				return new CoveredTextCondition(operator, CoveredTextCondition.PREFIX, match.literal, null, null);
+			case ENDS_WITH:
+				return new CoveredTextCondition(operator, CoveredTextCondition.SUFFIX, match.literal, null, null);
+			default:
+				return new CoveredTextCondition(operator, CoveredTextCondition.KEYWORD, match.literal, null, null);
+			}
+		}
+		return new CoveredTextCondition(operator, CoveredTextCondition.COMPARISON, (String) value, null, null);
+	}
+
+	private static boolean isStrings(Object value) {
+		if (value instanceof List) {
+			for(Object element : (List<?>) value) {
+				if (!(element instanceof String)) return false;
+			}
+			return true;
+		}
+		return value instanceof String;
+	}
+
+	/**
+	 * A string match whose pattern is a literal string, with the test it 
+	 * amounts to: equality, prefix, suffix or, for {@link 
+	 * ComparisonOperator#MATCHES}, a contained keyword.
+	 */
+	static class LiteralMatch {
+		final ComparisonOperator operator;
+		final String literal;
+
+		private LiteralMatch(ComparisonOperator operator, String literal) {
+			this.operator = operator;
+			this.literal = literal;
+		}
+
+		/**
+		 * Returns the literal match a string match amounts to, or null if its 
+		 * pattern is a regular expression with other than literal characters 
+		 * and anchors.
+		 */
+		static LiteralMatch of(ComparisonOperator operator, String pattern) {
+			if (operator!=ComparisonOperator.MATCHES) {
+				return new LiteralMatch(operator, pattern);
+			}
+			boolean anchoredAtStart = pattern.startsWith("^");
+			boolean anchoredAtEnd = pattern.endsWith("$") && !pattern.endsWith("\\$");
+			String literal = literal(pattern.substring(anchoredAtStart? 1 : 0, 
+					Math.max(anchoredAtStart? 1 : 0, pattern.length()-(anchoredAtEnd? 1 : 0))));
+			if (literal==null) {
+				return null;
+			}
+			if (anchoredAtStart) {
+				return new LiteralMatch(anchoredAtEnd? ComparisonOperator.EQUAL : ComparisonOperator.STARTS_WITH, literal);
+			}
+			return new LiteralMatch(anchoredAtEnd? ComparisonOperator.ENDS_WITH : ComparisonOperator.MATCHES, literal);
+		}
+	}
+
+	/**
+	 * Returns the characters a regular expression matches literally, or null 
+	 * if it has any construct other than literal and escaped characters.
+	 */
+	static String literal(String regex) {
+		StringBuilder literal = new StringBuilder(regex.length());
+		for(int i=0; i<regex.length(); ++i) {
+			char c = regex.charAt(i);
+			if (c=='\\') {
+				if (i+1>=regex.length() || Character.isLetterOrDigit(regex.charAt(i+1))) 
+					return null;
+				c = regex.charAt(++i);
+			}
+			else if (".[]{}()*+?|^$".indexOf(c)>=0) {
+				return null;
+			}
+			literal.append(c);
+		}
+		return literal.toString();
+	}
+
+	/**
+	 * Compiles a logical combination of conditions, flattening nested 
+	 * conjunctions and disjunctions and cancelling double negations.
+	 * <p>
+	 * The operands of conjunctions and disjunctions are reordered so that 
+	 * the expected cost of a test is minimal: conjunctions first test the 
+	 * operands with the lowest ratio of cost to probability of failing, 
+	 * disjunctions those with the lowest ratio of cost to probability of 
+	 * succeeding. Operands which may raise an exception are tested after the 
+	 * others, in the order they were written, so that none is raised for a 
+	 * feature structure which would not have raised it otherwise.
+	 */
+	private static ConditionPlan compileLogical(int mapNumber, Condition condition, Type sourceType, 
+			TypeSystem ts) throws TypeMapperException {
+		LogicalOperator logicalOperator = condition.getLogicalOperator();
+		List<ConditionPlan> operands = new ArrayList<ConditionPlan>();
+		for(Condition operand : condition.getOperands()) {
+			ConditionPlan operandPlan = compile(mapNumber, operand, sourceType, ts);
+			if (logicalOperator==LogicalOperator.AND && operandPlan instanceof AndCondition) {
+				Collections.addAll(operands, ((AndCondition) operandPlan).operands);
+			}
+			else if (logicalOperator==LogicalOperator.OR && operandPlan instanceof OrCondition) {
+				Collections.addAll(operands, ((OrCondition) operandPlan).operands);
+			}
+			else {
+				operands.add(operandPlan);
+			}
+		}
+		switch(logicalOperator) {
+		case NOT:
+			ConditionPlan operand = operands.get(0);
+			return operand instanceof NotCondition? ((NotCondition) operand).operand : new NotCondition(operand);
+		case AND:
+			return new AndCondition(order(operands, true));
+		default:
+			return new OrCondition(order(operands, false));
+		}
+	}
+
+	private static ConditionPlan[] order(List<ConditionPlan> operands, final boolean conjunction) {
+		List<ConditionPlan> ordered = new ArrayList<ConditionPlan>();
+		List<ConditionPlan> failing = new ArrayList<ConditionPlan>();
+		for(ConditionPlan operand : operands) {
+			(operand.canFail()? failing : ordered).add(operand);
+		}
+		Collections.sort(ordered, new Comparator<ConditionPlan>() {
+			@Override
+			public int compare(ConditionPlan c1, ConditionPlan c2) {
+				return Double.compare(rank(c1), rank(c2));
+			}
+
+			private double rank(ConditionPlan c) {
+				double shortCircuit = conjunction? 1-c.probability() : c.probability();
+				return c.cost()/Math.max(shortCircuit, 1e-6);
+			}
+		});
+		ordered.addAll(failing);
+		return ordered.toArray(new ConditionPlan[ordered.size()]);
+	}
+
+	static class LongCondition extends ConditionPlan {
+		private final long value;
+
+		LongCondition(CompiledPath path, ComparisonOperator operator, long value) {
+			super(path, operator);
+			this.value = value;
+		}
+
+		long getValue() {
+			return value;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			long lhs = path.readLong(fs);
+			return operator.accepts(lhs<value? -1 : (lhs==value? 0 : 1));
+		}
+	}
+
+	static class FloatCondition extends ConditionPlan {
+		private final float value;
+
+		FloatCondition(CompiledPath path, ComparisonOperator operator, float value) {
+			super(path, operator);
+			this.value = value;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			return operator.accepts(Float.compare(path.readFloat(fs), value));
+		}
+	}
+
+	static class DoubleCondition extends ConditionPlan {
+		private final double value;
+
+		DoubleCondition(CompiledPath path, ComparisonOperator operator, double value) {
+			super(path, operator);
+			this.value = value;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			return operator.accepts(Double.compare(path.readDouble(fs), value));
+		}
+	}
+
+	static class StringCondition extends ConditionPlan {
+		private final String value;
+
+		StringCondition(CompiledPath path, ComparisonOperator operator, String value) {
+			super(path, operator);
+			this.value = value;
+		}
+
+		String getValue() {
+			return value;
+		}
+
+		@Override
+		double cost() {
+			// Comparing the characters
+			return path.size()+1;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			String lhs = path.readString(fs);
+			if (lhs==null) {
+				// A missing string only differs from any value
+				return operator==ComparisonOperator.NOT_EQUAL;
+			}
+			return operator.accepts(lhs.compareTo(value));
+		}
+	}
+
+	static class BooleanCondition extends ConditionPlan {
+		private final boolean value;
+
+		BooleanCondition(CompiledPath path, ComparisonOperator operator, boolean value) {
+			super(path, operator);
+			this.value = value;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			boolean lhs = path.readBoolean(fs);
+			return operator.accepts(lhs==value? 0 : (lhs? 1 : -1));
+		}
+	}
+
+	/**
+	 * Membership of a string in a set of values; a missing string is in no 
+	 * set.
+	 */
+	static class StringSetCondition extends ConditionPlan {
+		private final Set<String> values;
+
+		StringSetCondition(CompiledPath path, ComparisonOperator operator, Set<String> values) {
+			super(path, operator);
+			this.values = values;
+		}
+
+		Set<String> getValues() {
+			return Collections.unmodifiableSet(values);
+		}
+
+		@Override
+		double cost() {
+			// Hashing the characters
+			return path.size()+1;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			String lhs = path.readString(fs);
+			return (lhs!=null && values.contains(lhs))==(operator==ComparisonOperator.IN);
+		}
+	}
+
+	/**
+	 * Membership of an integral value, looked up by binary search so that 
+	 * the value is not boxed.
+	 */
+	static class LongSetCondition extends ConditionPlan {
+		private final long[] values;
+
+		LongSetCondition(CompiledPath path, ComparisonOperator operator, long[] values) {
+			super(path, operator);
+			this.values = values;
+			Arrays.sort(values);
+		}
+
+		long[] getValues() {
+			return values.clone();
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			return (Arrays.binarySearch(values, path.readLong(fs))>=0)==(operator==ComparisonOperator.IN);
+		}
+	}
+
+	static class FloatSetCondition extends ConditionPlan {
+		private final float[] values;
+
+		FloatSetCondition(CompiledPath path, ComparisonOperator operator, float[] values) {
+			super(path, operator);
+			this.values = values;
+			Arrays.sort(values);
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			return (Arrays.binarySearch(values, path.readFloat(fs))>=0)==(operator==ComparisonOperator.IN);
+		}
+	}
+
+	static class DoubleSetCondition extends ConditionPlan {
+		private final double[] values;
+
+		DoubleSetCondition(CompiledPath path, ComparisonOperator operator, double[] values) {
+			super(path, operator);
+			this.values = values;
+			Arrays.sort(values);
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			return (Arrays.binarySearch(values, path.readDouble(fs))>=0)==(operator==ComparisonOperator.IN);
+		}
+	}
+
+	static class BooleanSetCondition extends ConditionPlan {
+		private final boolean acceptsFalse;
+		private final boolean acceptsTrue;
+
+		BooleanSetCondition(CompiledPath path, ComparisonOperator operator, boolean containsFalse, boolean containsTrue) {
+			super(path, operator);
+			boolean in = operator==ComparisonOperator.IN;
+			this.acceptsFalse = containsFalse==in;
+			this.acceptsTrue = containsTrue==in;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws InvalidFeaturePath {
+			return path.readBoolean(fs)? acceptsTrue : acceptsFalse;
+		}
+	}
+
+	/**
+	 * Match of a string against a pattern; a missing string matches no 
+	 * pattern. The path may lead to strings or, if its range is only known at 
+	 * runtime, to values which have to be checked to be strings.
+	 */
+	static abstract class StringMatchCondition extends ConditionPlan {
+		private final int mapNumber;
+		private final Condition condition;
+
+		StringMatchCondition(int mapNumber, Condition condition, CompiledPath path) {
+			super(path, condition.getComparisonOperator());
+			this.mapNumber = mapNumber;
+			this.condition = condition;
+		}
+
+		/**
+		 * Tells whether the strings are read without checking their type.
+		 */
+		boolean isStatic() {
+			return path.getLeafRange()==FeatureRange.STRING;
+		}
+
+		@Override
+		double cost() {
+			// Scanning the characters, checking the types of the values
+			return path.size()+(isStatic()? 1 : 4);
+		}
+
+		@Override
+		boolean canFail() {
+			return !isStatic() || path.canFail();
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws IncompatibleTypeComparison, InvalidFeaturePath {
+			String lhs;
+			if (isStatic()) {
+				lhs = path.readString(fs);
+			}
+			else {
+				Object value = path.extract(fs).getValue();
+				if (value!=null && !(value instanceof String)) {
+					throw new IncompatibleTypeComparison(mapNumber, condition);
+				}
+				lhs = (String) value;
+			}
+			return lhs!=null && matches(lhs);
+		}
+
+		abstract boolean matches(String s);
+	}
+
+	/**
+	 * A string match whose pattern is a literal string, which can be looked 
+	 * up in a {@link KeywordTrie} together with those of other rules.
+	 */
+	static abstract class LiteralMatchCondition extends StringMatchCondition {
+		private final String literal;
+
+		LiteralMatchCondition(int mapNumber, Condition condition, CompiledPath path, String literal) {
+			super(mapNumber, condition, path);
+			this.literal = literal;
+		}
+
+		String getLiteral() {
+			return literal;
+		}
+	}
+
+	static class PrefixCondition extends LiteralMatchCondition {
+		PrefixCondition(int mapNumber, Condition condition, CompiledPath path, String prefix) {
+			super(mapNumber, condition, path, prefix);
+		}
+
+		@Override
+		boolean matches(String s) {
+			return s.startsWith(getLiteral());
+		}
+	}
+
+	static class SuffixCondition extends LiteralMatchCondition {
+		SuffixCondition(int mapNumber, Condition condition, CompiledPath path, String suffix) {
+			super(mapNumber, condition, path, suffix);
+		}
+
+		@Override
+		boolean matches(String s) {
+			return s.endsWith(getLiteral());
+		}
+	}
+
+	static class KeywordCondition extends LiteralMatchCondition {
+		KeywordCondition(int mapNumber, Condition condition, CompiledPath path, String keyword) {
+			super(mapNumber, condition, path, keyword);
+		}
+
+		@Override
+		boolean matches(String s) {
+			return s.contains(getLiteral());
+		}
+	}
+
+	static class RegexCondition extends StringMatchCondition {
+		private final Pattern pattern;
+
+		RegexCondition(int mapNumber, Condition condition, CompiledPath path, Pattern pattern) {
+			super(mapNumber, condition, path);
+			this.pattern = pattern;
+		}
+
+		@Override
+		double cost() {
+			// Running the pattern matcher
+			return super.cost()+8;
+		}
+
+		@Override
+		boolean matches(String s) {
+			return pattern.matcher(s).find();
+		}
+	}
+
+	/**
+	 * Condition on the text covered by an annotation, compared in place in 
+	 * the document text so that testing an annotation does not create a 
+	 * string.
+	 */
+	static class CoveredTextCondition extends ConditionPlan {
+		// Kinds of tests
+		static final int COMPARISON = 0;
+		static final int SET = 1;
+		static final int PREFIX = 2;
+		static final int SUFFIX = 3;
+		static final int KEYWORD = 4;
+		static final int REGEX = 5;
+
+		private final int kind;
+		private final String value;
+		// The values of a set, sorted by hash code
+		private final int[] hashCodes;
+		private final String[] values;
+		private final Pattern pattern;
+
+		CoveredTextCondition(ComparisonOperator operator, int kind, String value, Set<String> values, 
+				Pattern pattern) {
+			super(null, operator);
+			this.kind = kind;
+			this.value = value;
+			this.pattern = pattern;
+			if (values!=null) {
+				this.values = values.toArray(new String[values.size()]);
+				Arrays.sort(this.values, new Comparator<String>() {
+					@Override
+					public int compare(String s1, String s2) {
+						int h1 = s1.hashCode();
+						int h2 = s2.hashCode();
+						return h1<h2? -1 : (h1==h2? 0 : 1);
+					}
+				});
+				this.hashCodes = new int[this.values.length];
+				for(int i=0; i<hashCodes.length; ++i) {
+					hashCodes[i] = this.values[i].hashCode();
+				}
+			}
+			else {
+				this.values = null;
+				this.hashCodes = null;
+			}
+		}
+
+		@Override
+		double cost() {
+			return kind==REGEX? 10 : 2;
+		}
+
+		@Override
+		boolean canFail() {
+			return false;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) {
+			return test(fs, null);
+		}
+
+		/**
+		 * Tests an annotation against the document text read once for its 
+		 * CAS, or read for this test only if the span indexes are null.
+		 */
+		@Override
+		boolean test(FeatureStructure fs, SpanIndex.Cache spans) {
+			AnnotationFS annotation = (AnnotationFS) fs;
+			String text = CoveredText.documentText(spans!=null? spans.getDocumentText() 
+					: annotation.getView().getDocumentText(), annotation);
+			if (text==null) {
+				// A missing string only differs from any value
+				return operator==ComparisonOperator.NOT_EQUAL || operator==ComparisonOperator.NOT_IN;
+			}
+			int begin = annotation.getBegin();
+			int end = annotation.getEnd();
+			switch(kind) {
+			case COMPARISON:
+				return operator.accepts(CoveredText.compare(text, begin, end, value));
+			case SET:
+				return contains(text, begin, end)==(operator==ComparisonOperator.IN);
+			case PREFIX:
+				return CoveredText.startsWith(text, begin, end, value);
+			case SUFFIX:
+				return CoveredText.endsWith(text, begin, end, value);
+			case KEYWORD:
+				return CoveredText.contains(text, begin, end, value);
+			default:
+				return pattern.matcher(new CoveredText.Region(text, begin, end)).find();
+			}
+		}
+
+		private boolean contains(String text, int begin, int end) {
+			int hashCode = CoveredText.hashCode(text, begin, end);
+			int i = Arrays.binarySearch(hashCodes, hashCode);
+			if (i<0) return false;
+			while(i>0 && hashCodes[i-1]==hashCode) --i;
+			for(; i<hashCodes.length && hashCodes[i]==hashCode; ++i) {
+				if (CoveredText.equals(text, begin, end, values[i])) return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Condition relating the span of an annotation to the spans of the 
+	 * annotations of another type, looked up in an index of the latter built 
+	 * once for the CAS rather than by iterating over them.
+	 */
+	static class SpanCondition extends ConditionPlan {
+		private final SpanRelation relation;
+		private final Type relatedType;
+
+		SpanCondition(SpanRelation relation, Type relatedType) {
+			super(null, null);
+			this.relation = relation;
+			this.relatedType = relatedType;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) {
+			return test(fs, null);
+		}
+
+		@Override
+		boolean test(FeatureStructure fs, SpanIndex.Cache spans) {
+			AnnotationFS annotation = (AnnotationFS) fs;
+			SpanIndex index = spans!=null? spans.get(relatedType) 
+					: new SpanIndex(annotation.getView(), relatedType);
+			return index.related(relation, annotation);
+		}
+
+		@Override
+		void addRelatedTypes(Collection<Type> types) {
+			types.add(relatedType);
+		}
+
+		@Override
+		double cost() {
+			return 4;
+		}
+
+		@Override
+		double probability() {
+			return 0.5;
+		}
+
+		@Override
+		boolean canFail() {
+			return false;
+		}
+	}
+
+	/**
+	 * Condition on a path whose range is only known at runtime, e.g. one 
+	 * going through the elements of an FSArray. The feature value is read 
+	 * boxed and compatibility is checked for every feature structure.
+	 */
+	static class DynamicCondition extends ConditionPlan {
+		private final int mapNumber;
+		private final Condition condition;
+
+		DynamicCondition(int mapNumber, Condition condition, CompiledPath path) {
+			super(path, condition.getComparisonOperator());
+			this.mapNumber = mapNumber;
+			this.condition = condition;
+		}
+
+		@Override
+		double cost() {
+			// Boxing and checking the types of the values
+			return path.size()+4;
+		}
+
+		@Override
+		boolean canFail() {
+			return true;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws IncompatibleTypeComparison, InvalidFeaturePath {
+			Object lhsValue = path.extract(fs).getValue();
+			Object rhsValue = condition.getValue();
+			if (lhsValue==null && isStrings(rhsValue)) {
+				// A missing string only differs from any value
+				return operator==ComparisonOperator.NOT_EQUAL || operator==ComparisonOperator.NOT_IN;
+			}
+			if (rhsValue instanceof List) {
+				for(Object value : (List<?>) rhsValue) {
+					if (compare(lhsValue, value)==0) {
+						return operator==ComparisonOperator.IN;
+					}
+				}
+				return operator==ComparisonOperator.NOT_IN;
+			}
+			return operator.accepts(compare(lhsValue, rhsValue));
+		}
+
+		private int compare(Object lhsValue, Object rhsValue) throws IncompatibleTypeComparison {
+			if (lhsValue instanceof String && rhsValue instanceof String) {
+				return ((String) lhsValue).compareTo((String) rhsValue);
+			}
+			if (lhsValue instanceof Float && rhsValue instanceof Number) {
+				return Float.compare((Float) lhsValue, ((Number) rhsValue).floatValue());
+			}
+			if (isIntegral(lhsValue) && rhsValue instanceof Integer) {
+				long lhs = ((Number) lhsValue).longValue();
+				long rhs = (Integer) rhsValue;
+				return lhs<rhs? -1 : (lhs==rhs? 0 : 1);
+			}
+			if ((lhsValue instanceof Double || isIntegral(lhsValue)) && rhsValue instanceof Number) {
+				return Double.compare(((Number) lhsValue).doubleValue(), ((Number) rhsValue).doubleValue());
+			}
+			if (lhsValue instanceof Boolean && ("true".equals(rhsValue) || "false".equals(rhsValue))) {
+				boolean lhs = (Boolean) lhsValue;
+				return lhs==Boolean.parseBoolean((String) rhsValue)? 0 : (lhs? 1 : -1);
+			}
+			throw new IncompatibleTypeComparison(mapNumber, condition);
+		}
+
+		private static boolean isIntegral(Object value) {
+			return value instanceof Integer || value instanceof Long 
+					|| value instanceof Short || value instanceof Byte;
+		}
+	}
+
+	static class AndCondition extends ConditionPlan {
+		private final ConditionPlan[] operands;
+
+		AndCondition(ConditionPlan[] operands) {
+			super(null, null);
+			this.operands = operands;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws IncompatibleTypeComparison, InvalidFeaturePath {
+			return test(fs, null);
+		}
+
+		@Override
+		boolean test(FeatureStructure fs, SpanIndex.Cache spans) 
+				throws IncompatibleTypeComparison, InvalidFeaturePath {
+			for(ConditionPlan operand : operands) {
+				if (!operand.test(fs, spans)) return false;
+			}
+			return true;
+		}
+
+		@Override
+		void addRelatedTypes(Collection<Type> types) {
+			for(ConditionPlan operand : operands) {
+				operand.addRelatedTypes(types);
+			}
+		}
+
+		@Override
+		double cost() {
+			double cost = 0;
+			double reached = 1;
+			for(ConditionPlan operand : operands) {
+				cost += reached*operand.cost();
+				reached *= operand.probability();
+			}
+			return cost;
+		}
+
+		@Override
+		double probability() {
+			double probability = 1;
+			for(ConditionPlan operand : operands) {
+				probability *= operand.probability();
+			}
+			return probability;
+		}
+
+		@Override
+		boolean canFail() {
+			// Operands which may fail are ordered last
+			return operands[operands.length-1].canFail();
+		}
+	}
+
+	static class OrCondition extends ConditionPlan {
+		private final ConditionPlan[] operands;
+
+		OrCondition(ConditionPlan[] operands) {
+			super(null, null);
+			this.operands = operands;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws IncompatibleTypeComparison, InvalidFeaturePath {
+			return test(fs, null);
+		}
+
+		@Override
+		boolean test(FeatureStructure fs, SpanIndex.Cache spans) 
+				throws IncompatibleTypeComparison, InvalidFeaturePath {
+			for(ConditionPlan operand : operands) {
+				if (operand.test(fs, spans)) return true;
+			}
+			return false;
+		}
+
+		@Override
+		void addRelatedTypes(Collection<Type> types) {
+			for(ConditionPlan operand : operands) {
+				operand.addRelatedTypes(types);
+			}
+		}
+
+		@Override
+		double cost() {
+			double cost = 0;
+			double reached = 1;
+			for(ConditionPlan operand : operands) {
+				cost += reached*operand.cost();
+				reached *= 1-operand.probability();
+			}
+			return cost;
+		}
+
+		@Override
+		double probability() {
+			double failing = 1;
+			for(ConditionPlan operand : operands) {
+				failing *= 1-operand.probability();
+			}
+			return 1-failing;
+		}
+
+		@Override
+		boolean canFail() {
+			// Operands which may fail are ordered last
+			return operands[operands.length-1].canFail();
+		}
+	}
+
+	static class NotCondition extends ConditionPlan {
+		private final ConditionPlan operand;
+
+		NotCondition(ConditionPlan operand) {
+			super(null, null);
+			this.operand = operand;
+		}
+
+		@Override
+		boolean test(FeatureStructure fs) throws IncompatibleTypeComparison, InvalidFeaturePath {
+			return test(fs, null);
+		}
+
+		@Override
+		boolean test(FeatureStructure fs, SpanIndex.Cache spans) 
+				throws IncompatibleTypeComparison, InvalidFeaturePath {
+			return !operand.test(fs, spans);
+		}
+
+		@Override
+		void addRelatedTypes(Collection<Type> types) {
+			operand.addRelatedTypes(types);
+		}
+
+		@Override
+		double cost() {
+			return operand.cost();
+		}
+
+		@Override
+		double probability() {
+			return 1-operand.probability();
+		}
+
+		@Override
+		boolean canFail() {
+			return operand.canFail();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+
+/**
+ * Access to the text covered by annotations. Conditions read the covered 
+ * text as a region of the document text, which is returned by reference, 
+ * so that comparing it neither copies nor creates a string; a string is 
+ * only created when the covered text is assigned to a feature.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+final class CoveredText {
+	private CoveredText() {
+	}
+
+	/**
+	 * Tells whether feature structures of the given type are annotations, 
+	 * that is whether they have a begin and end offset in a document text.
+	 */
+	static boolean isAnnotationType(Type type) {
+		Feature begin = type.getFeatureByBaseName(CAS.FEATURE_BASE_NAME_BEGIN);
+		return begin!=null && begin.getName().equals(CAS.FEATURE_FULL_NAME_BEGIN);
+	}
+
+	/**
+	 * Returns the given text of the view of an annotation if the offsets of 
+	 * the annotation are within it, or null.
+	 */
+	static String documentText(String text, AnnotationFS annotation) {
+		if (text==null || annotation.getBegin()<0 || annotation.getBegin()>annotation.getEnd() 
+				|| annotation.getEnd()>text.length()) {
+			return null;
+		}
+		return text;
+	}
+
+	/**
+	 * Returns the covered text of an annotation as a new string.
+	 */
+	static String get(FeatureStructure fs) {
+		return ((AnnotationFS) fs).getCoveredText();
+	}
+
+	/**
+	 * Compares a region of a text to a string as {@link String#compareTo} 
+	 * would compare the region's substring.
+	 */
+	static int compare(String text, int begin, int end, String value) {
+		int length = Math.min(end-begin, value.length());
+		for(int i=0; i<length; ++i) {
+			char c1 = text.charAt(begin+i);
+			char c2 = value.charAt(i);
+			if (c1!=c2) {
+				return c1-c2;
+			}
+		}
+		return (end-begin)-value.length();
+	}
+
+	static boolean equals(String text, int begin, int end, String value) {
+		return end-begin==value.length() && text.regionMatches(begin, value, 0, value.length());
+	}
+
+	/**
+	 * Returns the hash code the region's substring would have.
+	 */
+	static int hashCode(String text, int begin, int end) {
+		int hashCode = 0;
+		for(int i=begin; i<end; ++i) {
+			hashCode = 31*hashCode+text.charAt(i);
+		}
+		return hashCode;
+	}
+
+	static boolean startsWith(String text, int begin, int end, String prefix) {
+		return end-begin>=prefix.length() && text.regionMatches(begin, prefix, 0, prefix.length());
+	}
+
+	static boolean endsWith(String text, int begin, int end, String suffix) {
+		return end-begin>=suffix.length() && text.regionMatches(end-suffix.length(), suffix, 0, suffix.length());
+	}
+
+	/**
+	 * Tells whether a region of a text contains a string, without looking 
+	 * past the end of the region.
+	 */
+	static boolean contains(String text, int begin, int end, String value) {
+		int last = end-value.length();
+		for(int i=begin; i<=last; ++i) {
+			if (text.regionMatches(i, value, 0, value.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A region of a text seen as a character sequence, for regular 
+	 * expressions to match without copying it.
+	 */
+	static class Region implements CharSequence {
+		private final String text;
+		private final int begin;
+		private final int end;
+
+		Region(String text, int begin, int end) {
+			this.text = text;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end-begin;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index<0 || index>=end-begin) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return text.charAt(begin+index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start<0 || start>end || end>this.end-begin) {
+				throw new IndexOutOfBoundsException(start+", "+end);
+			}
+			return new Region(text, begin+start, begin+end);
+		}
+
+		@Override
+		public String toString() {
+			return text.substring(begin, end);
+		}
+	}
+}
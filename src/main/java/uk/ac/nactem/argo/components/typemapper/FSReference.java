@@ -17,7 +17,6 @@
  */
 package uk.ac.nactem.argo.components.typemapper;
 
-import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CommonArrayFS;
 import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.FeatureStructure;
@@ -36,64 +35,46 @@ interface FSReference {
 	static class FSFeatureReference implements FSReference {
 		private FeatureStructure fs;
 		private Feature feature;
+		private FeatureRange range;
 
 		FSFeatureReference(FeatureStructure fs, Feature feature) {
+			this(fs, feature, FeatureRange.of(feature));
+		}
+
+		FSFeatureReference(FeatureStructure fs, Feature feature, FeatureRange range) {
 			this.fs = fs;
 			this.feature = feature;
+			this.range = range;
 		}
 
 		@Override
 		public Object getValue() {
-			if (!feature.getRange().isPrimitive()) {
-				return fs.getFeatureValue(feature);
-			}
-			String rangeName = feature.getRange().getName();	
-			if (CAS.TYPE_NAME_STRING.equals(rangeName)) {
-				return fs.getStringValue(feature);
-			} else if (CAS.TYPE_NAME_INTEGER.equals(rangeName)) {
-				return fs.getIntValue(feature);
-			} else if (CAS.TYPE_NAME_FLOAT.equals(rangeName)) {
-				return fs.getFloatValue(feature);
-			} else if (CAS.TYPE_NAME_BYTE.equals(rangeName)) {
-				return fs.getByteValue(feature);
-			} else if (CAS.TYPE_NAME_SHORT.equals(rangeName)) {
-				return fs.getShortValue(feature);
-			} else if (CAS.TYPE_NAME_LONG.equals(rangeName)) {
-				return fs.getLongValue(feature);
-			} else if (CAS.TYPE_NAME_DOUBLE.equals(rangeName)) {
-				return fs.getDoubleValue(feature);
-			} else if (CAS.TYPE_NAME_BOOLEAN.equals(rangeName)) {
-				return fs.getBooleanValue(feature);
-			}
-			return null;
+			return range.get(fs, feature);
 		}
 
 		@Override
 		public void setValue(Object value) {
-			// TODO setting single-ref arrays
+			range.set(fs, feature, value);
+		}
 
-			if (!feature.getRange().isPrimitive()) {
-				fs.setFeatureValue(feature, (FeatureStructure) value);
+		/**
+		 * Sets the value of this feature to that of the given one; values of 
+		 * the same range are copied without being boxed.
+		 */
+		void copyValueFrom(FSFeatureReference source) {
+			copyValueFrom(source.fs, source.feature, source.range);
+		}
+
+		/**
+		 * Sets the value of this feature to that of the given feature of the 
+		 * given feature structure, whose range is given.
+		 */
+		void copyValueFrom(FeatureStructure sourceFs, Feature sourceFeature, FeatureRange sourceRange) {
+			if (sourceRange==range) {
+				range.copy(sourceFs, sourceFeature, fs, feature);
 			}
 			else {
-				String rangeName = feature.getRange().getName();
-				if (CAS.TYPE_NAME_STRING.equals(rangeName)) {
-					fs.setStringValue(feature, (String) value);
-				} else if (CAS.TYPE_NAME_INTEGER.equals(rangeName)) {
-					fs.setIntValue(feature, (Integer) value);
-				} else if (CAS.TYPE_NAME_FLOAT.equals(rangeName)) {
-					fs.setFloatValue(feature, (Float) value);
-				} else if (CAS.TYPE_NAME_BYTE.equals(rangeName)) {
-					fs.setByteValue(feature, (Byte) value);
-				} else if (CAS.TYPE_NAME_SHORT.equals(rangeName)) {
-					fs.setShortValue(feature, (Short) value);
-				} else if (CAS.TYPE_NAME_LONG.equals(rangeName)) {
-					fs.setLongValue(feature, (Long) value);
-				} else if (CAS.TYPE_NAME_DOUBLE.equals(rangeName)) {
-					fs.setDoubleValue(feature, (Double) value);
-				} else if (CAS.TYPE_NAME_BOOLEAN.equals(rangeName)) {
-					fs.setBooleanValue(feature, (Boolean) value);
-				}
+				range.set(fs, feature, sourceRange.get(sourceFs, sourceFeature));
 			}
 		}
 
@@ -128,28 +109,31 @@ interface FSReference {
 		CommonArrayFS array;
 		int arrayIndex;
 		FSFeatureReference parentFSRef;
+		FeatureRange elementRange;
 		public ArrayReference(CommonArrayFS array, int arrayIndex, FSFeatureReference ref) {
+			this(array, arrayIndex, ref, FeatureRange.ofElements(array));
+		}
+
+		ArrayReference(CommonArrayFS array, int arrayIndex, FSFeatureReference ref, FeatureRange elementRange) {
 			this.array = array;
 			this.arrayIndex = arrayIndex;
 			this.parentFSRef = ref;
+			this.elementRange = elementRange;
 		}
 
 		@Override
 		public Object getValue() {
-			return UimaUtils.getArrayValue(array, arrayIndex);
+			return elementRange.getElement(array, arrayIndex);
 		}
 
 		@Override
 		public void setValue(Object value) {
-			UimaUtils.setArrayValue(array, arrayIndex, value);
+			elementRange.setElement(array, arrayIndex, value);
 		}
 
 		@Override
 		public boolean isValueTypePrimitive() {
-			if (CAS.TYPE_NAME_FS_ARRAY.equals(array.getType().getName())) {
-				return false;
-			}
-			return true;
+			return elementRange!=FeatureRange.FS;
 		}
 
 		@Override
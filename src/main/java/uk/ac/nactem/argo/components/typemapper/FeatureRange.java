@@ -0,0 +1,435 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.BooleanArrayFS;
+import org.apache.uima.cas.ByteArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CommonArrayFS;
+import org.apache.uima.cas.DoubleArrayFS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.FloatArrayFS;
+import org.apache.uima.cas.IntArrayFS;
+import org.apache.uima.cas.LongArrayFS;
+import org.apache.uima.cas.ShortArrayFS;
+import org.apache.uima.cas.StringArrayFS;
+import org.apache.uima.cas.Type;
+
+/**
+ * The range of a feature, recognised once from the name of its range type, 
+ * providing direct typed access to values of that range, and to elements 
+ * of arrays whose component type is of that range.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+enum FeatureRange {
+	STRING(CAS.TYPE_NAME_STRING) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getStringValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setStringValue(feature, (String) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setStringValue(targetFeature, sourceFs.getStringValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((StringArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((StringArrayFS) array).set(index, (String) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createStringArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			String[] buffer = new String[length];
+			((StringArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((StringArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	INTEGER(CAS.TYPE_NAME_INTEGER) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getIntValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setIntValue(feature, (Integer) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setIntValue(targetFeature, sourceFs.getIntValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((IntArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((IntArrayFS) array).set(index, (Integer) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createIntArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			int[] buffer = new int[length];
+			((IntArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((IntArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	FLOAT(CAS.TYPE_NAME_FLOAT) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getFloatValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setFloatValue(feature, (Float) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setFloatValue(targetFeature, sourceFs.getFloatValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((FloatArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((FloatArrayFS) array).set(index, (Float) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createFloatArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			float[] buffer = new float[length];
+			((FloatArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((FloatArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	BYTE(CAS.TYPE_NAME_BYTE) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getByteValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setByteValue(feature, (Byte) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setByteValue(targetFeature, sourceFs.getByteValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((ByteArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((ByteArrayFS) array).set(index, (Byte) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createByteArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			byte[] buffer = new byte[length];
+			((ByteArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((ByteArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	SHORT(CAS.TYPE_NAME_SHORT) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getShortValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setShortValue(feature, (Short) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setShortValue(targetFeature, sourceFs.getShortValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((ShortArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((ShortArrayFS) array).set(index, (Short) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createShortArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			short[] buffer = new short[length];
+			((ShortArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((ShortArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	LONG(CAS.TYPE_NAME_LONG) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getLongValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setLongValue(feature, (Long) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setLongValue(targetFeature, sourceFs.getLongValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((LongArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((LongArrayFS) array).set(index, (Long) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createLongArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			long[] buffer = new long[length];
+			((LongArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((LongArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	DOUBLE(CAS.TYPE_NAME_DOUBLE) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getDoubleValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setDoubleValue(feature, (Double) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setDoubleValue(targetFeature, sourceFs.getDoubleValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((DoubleArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((DoubleArrayFS) array).set(index, (Double) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createDoubleArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			double[] buffer = new double[length];
+			((DoubleArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((DoubleArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	BOOLEAN(CAS.TYPE_NAME_BOOLEAN) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getBooleanValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			fs.setBooleanValue(feature, (Boolean) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			targetFs.setBooleanValue(targetFeature, sourceFs.getBooleanValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((BooleanArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((BooleanArrayFS) array).set(index, (Boolean) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createBooleanArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			boolean[] buffer = new boolean[length];
+			((BooleanArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((BooleanArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	},
+	// Any non-primitive range, including arrays
+	FS(null) {
+		@Override
+		Object get(FeatureStructure fs, Feature feature) {
+			return fs.getFeatureValue(feature);
+		}
+		@Override
+		void set(FeatureStructure fs, Feature feature, Object value) {
+			// TODO setting single-ref arrays
+			fs.setFeatureValue(feature, (FeatureStructure) value);
+		}
+		@Override
+		void copy(FeatureStructure sourceFs, Feature sourceFeature, FeatureStructure targetFs, Feature targetFeature) {
+			// TODO consider arrays
+			targetFs.setFeatureValue(targetFeature, sourceFs.getFeatureValue(sourceFeature));
+		}
+		@Override
+		Object getElement(CommonArrayFS array, int index) {
+			return ((ArrayFS) array).get(index);
+		}
+		@Override
+		void setElement(CommonArrayFS array, int index, Object value) {
+			((ArrayFS) array).set(index, (FeatureStructure) value);
+		}
+		@Override
+		CommonArrayFS createArray(CAS cas, int length) {
+			return cas.createArrayFS(length);
+		}
+		@Override
+		void copyElements(CommonArrayFS source, int sourceOffset, CommonArrayFS target, int targetOffset, int length) {
+			FeatureStructure[] buffer = new FeatureStructure[length];
+			((ArrayFS) source).copyToArray(sourceOffset, buffer, 0, length);
+			((ArrayFS) target).copyFromArray(buffer, 0, targetOffset, length);
+		}
+	};
+
+	private final String typeName;
+
+	FeatureRange(String typeName) {
+		this.typeName = typeName;
+	}
+
+	/**
+	 * Returns the value of the feature, boxed if primitive.
+	 */
+	abstract Object get(FeatureStructure fs, Feature feature);
+
+	/**
+	 * Sets the value of the feature from a value of the matching boxed type.
+	 */
+	abstract void set(FeatureStructure fs, Feature feature, Object value);
+
+	/**
+	 * Copies the value of a feature to another feature of the same range 
+	 * without boxing it.
+	 */
+	abstract void copy(FeatureStructure sourceFs, Feature sourceFeature, 
+			FeatureStructure targetFs, Feature targetFeature);
+
+	/**
+	 * Returns an element of an array whose elements are of this range, 
+	 * boxed if primitive.
+	 */
+	abstract Object getElement(CommonArrayFS array, int index);
+
+	/**
+	 * Sets an element of an array whose elements are of this range from a 
+	 * value of the matching boxed type.
+	 */
+	abstract void setElement(CommonArrayFS array, int index, Object value);
+
+	/**
+	 * Creates an array whose elements are of this range.
+	 */
+	abstract CommonArrayFS createArray(CAS cas, int length);
+
+	/**
+	 * Copies a run of elements between two arrays whose elements are of 
+	 * this range, in bulk rather than element by element.
+	 */
+	abstract void copyElements(CommonArrayFS source, int sourceOffset, 
+			CommonArrayFS target, int targetOffset, int length);
+
+	String getTypeName() {
+		return typeName;
+	}
+
+	static FeatureRange of(Feature feature) {
+		return of(feature.getRange());
+	}
+
+	static FeatureRange of(Type range) {
+		if (!range.isPrimitive()) {
+			return FS;
+		}
+		String rangeName = range.getName();
+		for(FeatureRange featureRange : values()) {
+			if (rangeName.equals(featureRange.typeName)) {
+				return featureRange;
+			}
+		}
+		// The only user-defined primitive types are string subtypes
+		return STRING;
+	}
+
+	/**
+	 * Returns the range of the elements of the given array type.
+	 */
+	static FeatureRange ofElements(Type arrayType) {
+		return of(arrayType.getComponentType());
+	}
+
+	/**
+	 * Returns the range of the elements of the given array.
+	 */
+	static FeatureRange ofElements(CommonArrayFS array) {
+		if (array instanceof ArrayFS) 
+			return FS;
+		if (array instanceof StringArrayFS) 
+			return STRING;
+		if (array instanceof IntArrayFS) 
+			return INTEGER;
+		if (array instanceof FloatArrayFS) 
+			return FLOAT;
+		if (array instanceof DoubleArrayFS) 
+			return DOUBLE;
+		if (array instanceof LongArrayFS) 
+			return LONG;
+		if (array instanceof ShortArrayFS) 
+			return SHORT;
+		if (array instanceof ByteArrayFS) 
+			return BYTE;
+		if (array instanceof BooleanArrayFS) 
+			return BOOLEAN;
+		return ofElements(array.getType());
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Trie of keywords, extended into an Aho-Corasick automaton, which finds 
+ * in a single pass over a string either the keywords it starts with or 
+ * those it contains. Keywords are identified by their position in the list 
+ * the trie is built from, and are reported in that order.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class KeywordTrie {
+	private static final int ROOT = 0;
+
+	private final int keywordCount;
+	// Per state: the characters it has transitions on, sorted, and the 
+	// states they lead to
+	private final char[][] labels;
+	private final int[][] targets;
+	// Per state: the state of the longest proper suffix of its string which 
+	// is also a state
+	private final int[] failures;
+	// Per state: the keywords which are prefixes of its string
+	private final int[][] prefixKeywords;
+	// Per state: the keywords which are suffixes of its string
+	private final int[][] suffixKeywords;
+
+	KeywordTrie(List<String> keywords) {
+		this.keywordCount = keywords.size();
+		List<Map<Character, Integer>> transitions = new ArrayList<Map<Character, Integer>>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		transitions.add(new TreeMap<Character, Integer>());
+		ends.add(new ArrayList<Integer>());
+		for(int k=0; k<keywords.size(); ++k) {
+			String keyword = keywords.get(k);
+			int state = ROOT;
+			for(int i=0; i<keyword.length(); ++i) {
+				Integer next = transitions.get(state).get(keyword.charAt(i));
+				if (next==null) {
+					next = transitions.size();
+					transitions.add(new TreeMap<Character, Integer>());
+					ends.add(new ArrayList<Integer>());
+					transitions.get(state).put(keyword.charAt(i), next);
+				}
+				state = next;
+			}
+			ends.get(state).add(k);
+		}
+
+		int stateCount = transitions.size();
+		labels = new char[stateCount][];
+		targets = new int[stateCount][];
+		for(int state=0; state<stateCount; ++state) {
+			Map<Character, Integer> stateTransitions = transitions.get(state);
+			labels[state] = new char[stateTransitions.size()];
+			targets[state] = new int[stateTransitions.size()];
+			int i = 0;
+			for(Map.Entry<Character, Integer> transition : stateTransitions.entrySet()) {
+				labels[state][i] = transition.getKey();
+				targets[state][i++] = transition.getValue();
+			}
+		}
+
+		// States are visited breadth first, so that the failure of a state 
+		// is known before its children are visited
+		failures = new int[stateCount];
+		prefixKeywords = new int[stateCount][];
+		suffixKeywords = new int[stateCount][];
+		prefixKeywords[ROOT] = toArray(ends.get(ROOT));
+		suffixKeywords[ROOT] = prefixKeywords[ROOT];
+		Queue<Integer> queue = new ArrayDeque<Integer>();
+		queue.add(ROOT);
+		while(!queue.isEmpty()) {
+			int state = queue.poll();
+			for(int i=0; i<labels[state].length; ++i) {
+				int child = targets[state][i];
+				failures[child] = state==ROOT? ROOT : next(failures[state], labels[state][i]);
+				int[] childEnds = toArray(ends.get(child));
+				prefixKeywords[child] = union(prefixKeywords[state], childEnds);
+				suffixKeywords[child] = union(suffixKeywords[failures[child]], childEnds);
+				queue.add(child);
+			}
+		}
+	}
+
+	int getStateCount() {
+		return labels.length;
+	}
+
+	/**
+	 * Returns the keywords which are prefixes of the string of the given 
+	 * state, in keyword order.
+	 */
+	int[] getPrefixKeywords(int state) {
+		return prefixKeywords[state];
+	}
+
+	/**
+	 * Returns the deepest state reached by walking the trie along the given 
+	 * string, from its start or from its end. The keywords the string starts 
+	 * (or ends) with are those of {@link #getPrefixKeywords(int)}; for 
+	 * suffixes, the trie is built from reversed keywords.
+	 */
+	int walk(String s, boolean fromEnd) {
+		int state = ROOT;
+		int length = s.length();
+		for(int i=0; i<length; ++i) {
+			int next = transition(state, s.charAt(fromEnd? length-1-i : i));
+			if (next<0) break;
+			state = next;
+		}
+		return state;
+	}
+
+	/**
+	 * Finds the keywords the given string contains.
+	 * 
+	 * @return flags indexed by keyword, or null if it contains none
+	 */
+	boolean[] find(String s) {
+		boolean[] found = mark(null, suffixKeywords[ROOT]);
+		int state = ROOT;
+		for(int i=0; i<s.length(); ++i) {
+			state = next(state, s.charAt(i));
+			found = mark(found, suffixKeywords[state]);
+		}
+		return found;
+	}
+
+	private boolean[] mark(boolean[] found, int[] keywords) {
+		if (keywords.length>0) {
+			if (found==null) {
+				found = new boolean[keywordCount];
+			}
+			for(int keyword : keywords) {
+				found[keyword] = true;
+			}
+		}
+		return found;
+	}
+
+	private int transition(int state, char c) {
+		int i = Arrays.binarySearch(labels[state], c);
+		return i>=0? targets[state][i] : -1;
+	}
+
+	private int next(int state, char c) {
+		while(true) {
+			int next = transition(state, c);
+			if (next>=0) return next;
+			if (state==ROOT) return ROOT;
+			state = failures[state];
+		}
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] array = new int[values.size()];
+		for(int i=0; i<array.length; ++i) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Merges two sorted arrays of distinct keywords.
+	 */
+	private static int[] union(int[] a, int[] b) {
+		if (b.length==0) return a;
+		if (a.length==0) return b;
+		int[] union = new int[a.length+b.length];
+		int i = 0, j = 0, n = 0;
+		while(i<a.length || j<b.length) {
+			int next;
+			if (j>=b.length || (i<a.length && a[i]<b[j])) {
+				next = a[i++];
+			}
+			else if (i>=a.length || b[j]<a[i]) {
+				next = b[j++];
+			}
+			else {
+				next = a[i++];
+				++j;
+			}
+			union[n++] = next;
+		}
+		return Arrays.copyOf(union, n);
+	}
+}
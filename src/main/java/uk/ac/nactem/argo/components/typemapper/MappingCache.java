@@ -0,0 +1,302 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.uima.cas.TypeSystem;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.TypeMapperException;
+import uk.ac.nactem.argo.components.typemapper.TypeMapBuilder.ParseException;
+
+/**
+ * Process-wide cache of parsed and compiled mappings, so that the component 
+ * instances of a JVM running the same mapping definition share a single copy 
+ * of its type maps and of its plan for each type system.
+ * <p>
+ * Definitions are keyed by a digest of their content, and mapping files by 
+ * their locations, the files being read again if any of them has been 
+ * modified since they were cached, which is told by its modification time 
+ * or, when that is unknown, by a digest of its content. Parsed definitions are 
+ * softly referenced, so they are kept while memory allows even when no 
+ * instance uses them, e.g. across pipeline restarts. Plans are only weakly 
+ * referenced and kept as long as an instance uses them, since they hold on 
+ * to the type system they were compiled for.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+final class MappingCache {
+	private static final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+	private static final ReferenceQueue<CachedMapping> cleared = new ReferenceQueue<CachedMapping>();
+
+	private MappingCache() {
+	}
+
+	/**
+	 * Returns the mapping parsed from the given definition, parsing it only 
+	 * if no mapping with the same content is cached.
+	 */
+	static CachedMapping get(final String mappingDefinition) throws ParseException {
+		try {
+			return get("text:"+digest(mappingDefinition), new Loader() {
+				@Override
+				public CachedMapping load() throws ParseException {
+					return new CachedMapping(TypeMapBuilder.build(mappingDefinition));
+				}
+			});
+		} catch (IOException e) {
+			// Not raised when parsing a string
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the mapping built from the given files, in order, building it 
+	 * only if the files it was cached from, including the included ones, 
+	 * have not changed since. Files whose modification time is unknown are 
+	 * compared by content.
+	 */
+	static CachedMapping getFiles(final List<URL> urls) throws ParseException, IOException {
+		return get("files:"+urls, new Loader() {
+			@Override
+			public CachedMapping load() throws ParseException, IOException {
+				List<URL> sources = new ArrayList<URL>();
+				List<TypeMap> typeMaps = new ArrayList<TypeMap>();
+				for(URL url : urls) {
+					typeMaps.addAll(TypeMapBuilder.build(url, sources));
+				}
+				long[] stamps = new long[sources.size()];
+				String[] digests = new String[sources.size()];
+				for(int i=0; i<stamps.length; ++i) {
+					stamps[i] = lastModified(sources.get(i));
+					if (stamps[i]==0) {
+						digests[i] = digest(sources.get(i));
+					}
+				}
+				return new CachedMapping(typeMaps, sources, stamps, digests);
+			}
+		});
+	}
+
+	private static long lastModified(URL url) throws IOException {
+		if (url.getProtocol().equals("file")) {
+			try {
+				return new File(url.toURI()).lastModified();
+			} catch (URISyntaxException e) {
+				return 0;
+			} catch (IllegalArgumentException e) {
+				return 0;
+			}
+		}
+		URLConnection connection = url.openConnection();
+		try {
+			return connection.getLastModified();
+		} finally {
+			// Only the header is needed
+			connection.getInputStream().close();
+		}
+	}
+
+	private static CachedMapping get(String key, Loader loader) throws ParseException, IOException {
+		purge();
+		Slot slot = slots.get(key);
+		if (slot==null) {
+			Slot newSlot = new Slot();
+			slot = slots.putIfAbsent(key, newSlot);
+			if (slot==null) {
+				slot = newSlot;
+			}
+		}
+		// Instances initialised concurrently wait for a single parse
+		synchronized(slot) {
+			CachedMapping mapping = slot.mapping!=null? slot.mapping.get() : null;
+			if (mapping==null || !mapping.isUpToDate()) {
+				mapping = loader.load();
+				slot.mapping = new MappingReference(key, mapping, cleared);
+			}
+			return mapping;
+		}
+	}
+
+	/**
+	 * Removes the slots of the mappings collected by the garbage collector.
+	 */
+	private static void purge() {
+		MappingReference ref;
+		while((ref = (MappingReference) cleared.poll())!=null) {
+			Slot slot = slots.get(ref.key);
+			if (slot!=null) {
+				synchronized(slot) {
+					if (slot.mapping==ref) {
+						slots.remove(ref.key, slot);
+					}
+				}
+			}
+		}
+	}
+
+	static String digest(String mappingDefinition) {
+		try {
+			return digest(mappingDefinition.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String digest(URL url) throws IOException {
+		InputStream is = url.openStream();
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while((n = is.read(buffer))>=0) {
+				content.write(buffer, 0, n);
+			}
+			return digest(content.toByteArray());
+		} finally {
+			is.close();
+		}
+	}
+
+	static String digest(byte[] data) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] hash = md.digest(data);
+			StringBuilder sb = new StringBuilder(hash.length*2);
+			for(byte b : hash) {
+				sb.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private interface Loader {
+		CachedMapping load() throws ParseException, IOException;
+	}
+
+	private static class Slot {
+		private MappingReference mapping;
+	}
+
+	private static class MappingReference extends SoftReference<CachedMapping> {
+		private final String key;
+
+		MappingReference(String key, CachedMapping mapping, ReferenceQueue<CachedMapping> queue) {
+			super(mapping, queue);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * The type maps of a definition, with the plans compiled from them for 
+	 * the type systems of the CASes processed.
+	 */
+	static class CachedMapping {
+		private final List<TypeMap> typeMaps;
+		// Files the type maps were read from, with their modification times, 
+		// and the digests of their content where the time is unknown
+		private final List<URL> sources;
+		private final long[] stamps;
+		private final String[] digests;
+		private final Map<TypeSystem, Map<List<Object>, WeakReference<MappingPlan>>> plans = 
+				new WeakHashMap<TypeSystem, Map<List<Object>, WeakReference<MappingPlan>>>();
+
+		CachedMapping(List<TypeMap> typeMaps) {
+			this(typeMaps, Collections.<URL>emptyList(), new long[0], new String[0]);
+		}
+
+		CachedMapping(List<TypeMap> typeMaps, List<URL> sources, long[] stamps, String[] digests) {
+			this.typeMaps = Collections.unmodifiableList(typeMaps);
+			this.sources = sources;
+			this.stamps = stamps;
+			this.digests = digests;
+		}
+
+		/**
+		 * Tells whether none of the files the type maps were read from has 
+		 * changed.
+		 */
+		boolean isUpToDate() throws IOException {
+			for(int i=0; i<stamps.length; ++i) {
+				if (stamps[i]==0) {
+					if (!digest(sources.get(i)).equals(digests[i])) {
+						return false;
+					}
+				}
+				else if (lastModified(sources.get(i))!=stamps[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		List<TypeMap> getTypeMaps() {
+			return typeMaps;
+		}
+
+		/**
+		 * Returns the plan compiled for the given type system and options, 
+		 * compiling it if no instance currently uses such a plan.
+		 */
+		synchronized MappingPlan getPlan(TypeSystem ts, 
+				boolean ignoreMissingSourceType, boolean ignoreMissingTargetType, 
+				DispatchMode dispatchMode, IndexingMode indexingMode) throws TypeMapperException {
+			Map<List<Object>, WeakReference<MappingPlan>> tsPlans = plans.get(ts);
+			if (tsPlans==null) {
+				tsPlans = new HashMap<List<Object>, WeakReference<MappingPlan>>();
+				plans.put(ts, tsPlans);
+			}
+			List<Object> options = Arrays.<Object>asList(ignoreMissingSourceType, ignoreMissingTargetType, 
+					dispatchMode, indexingMode);
+			WeakReference<MappingPlan> planRef = tsPlans.get(options);
+			MappingPlan plan = planRef!=null? planRef.get() : null;
+			if (plan==null) {
+				plan = MappingPlan.compile(typeMaps, ts, 
+						ignoreMissingSourceType, ignoreMissingTargetType, dispatchMode, indexingMode);
+				tsPlans.put(options, new WeakReference<MappingPlan>(plan));
+			}
+			return plan;
+		}
+	}
+}
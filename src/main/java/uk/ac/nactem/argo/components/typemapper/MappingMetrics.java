@@ -0,0 +1,237 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per mapping runtime counters. Each thread accumulates into its own block 
+ * of counters, so that counting needs neither synchronisation nor shared 
+ * cache lines; the blocks are only summed when the metrics are read. Time 
+ * is sampled on one source feature structure out of {@link #SAMPLING_PERIOD} 
+ * and scaled, to keep the cost of reading the clock low. The sampling clock 
+ * of a thread runs on across scans and CASes, so that every feature 
+ * structure is equally likely to be sampled whatever the size of its scan.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class MappingMetrics implements MappingMetricsMBean {
+	static final int SAMPLING_PERIOD = 16;
+	static final int SAMPLING_MASK = SAMPLING_PERIOD-1;
+
+	// Counters of each mapping, at (mapNumber-1)*RULE_SLOTS
+	private static final int SCANNED = 0;
+	private static final int MATCHED = 1;
+	private static final int SAMPLED_NANOS = 2;
+	private static final int RULE_SLOTS = 3;
+	// Totals, after the counters of the mappings
+	private static final int CASES = 0;
+	private static final int TARGETS = 1;
+	private static final int CAS_NANOS = 2;
+	private static final int SAMPLE_CLOCK = 3;
+	private static final int TOTAL_SLOTS = 4;
+
+	private final String[] mappings;
+	private final int size;
+	private final List<long[]> blocks = new CopyOnWriteArrayList<long[]>();
+	private final ThreadLocal<long[]> threadBlock = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			long[] block = new long[size];
+			blocks.add(block);
+			return block;
+		}
+	};
+	// Sums at the last reset, subtracted from the current sums
+	private volatile long[] baseline;
+
+	MappingMetrics(List<TypeMap> typeMaps) {
+		mappings = new String[typeMaps.size()];
+		for(int i=0; i<mappings.length; ++i) {
+			TypeMap typeMap = typeMaps.get(i);
+			mappings[i] = "#"+(i+1)+" "+typeMap.getSourceTypeName()+
+					(typeMap.getCondition()!=null? " where "+typeMap.getCondition() : "")+
+					" -> "+typeMap.getTargetTypeName();
+		}
+		size = mappings.length*RULE_SLOTS+TOTAL_SLOTS;
+		baseline = new long[size];
+	}
+
+	/**
+	 * The counters of the current thread, to be passed to the counting 
+	 * methods.
+	 */
+	long[] counters() {
+		return threadBlock.get();
+	}
+
+	/**
+	 * Whether the next feature structure processed by the thread owning the 
+	 * counters is to be sampled.
+	 */
+	static boolean sample(long[] counters) {
+		return (counters[counters.length-TOTAL_SLOTS+SAMPLE_CLOCK]++ & SAMPLING_MASK)==0;
+	}
+
+	static void scanned(long[] counters, RulePlan rule, long count) {
+		counters[(rule.getMapNumber()-1)*RULE_SLOTS+SCANNED] += count;
+	}
+
+	static void matched(long[] counters, RulePlan rule) {
+		++counters[(rule.getMapNumber()-1)*RULE_SLOTS+MATCHED];
+	}
+
+	/**
+	 * Records the time spent on a rule for a sampled feature structure.
+	 */
+	static void sampled(long[] counters, RulePlan rule, long nanos) {
+		counters[(rule.getMapNumber()-1)*RULE_SLOTS+SAMPLED_NANOS] += nanos;
+	}
+
+	void casProcessed(long[] counters, int targets, long nanos) {
+		int totals = mappings.length*RULE_SLOTS;
+		++counters[totals+CASES];
+		counters[totals+TARGETS] += targets;
+		counters[totals+CAS_NANOS] += nanos;
+	}
+
+	private long[] sums() {
+		long[] sums = new long[size];
+		for(long[] block : blocks) {
+			for(int i=0; i<size; ++i) {
+				sums[i] += block[i];
+			}
+		}
+		long[] baseline = this.baseline;
+		for(int i=0; i<size; ++i) {
+			sums[i] -= baseline[i];
+		}
+		return sums;
+	}
+
+	private long[] ruleValues(long[] sums, int slot) {
+		long[] values = new long[mappings.length];
+		for(int i=0; i<values.length; ++i) {
+			values[i] = sums[i*RULE_SLOTS+slot];
+		}
+		return values;
+	}
+
+	@Override
+	public String[] getMappings() {
+		return mappings.clone();
+	}
+
+	@Override
+	public long[] getScanned() {
+		return ruleValues(sums(), SCANNED);
+	}
+
+	@Override
+	public long[] getMatched() {
+		return ruleValues(sums(), MATCHED);
+	}
+
+	@Override
+	public long[] getFailed() {
+		long[] sums = sums();
+		long[] scanned = ruleValues(sums, SCANNED);
+		long[] matched = ruleValues(sums, MATCHED);
+		for(int i=0; i<scanned.length; ++i) {
+			scanned[i] -= matched[i];
+		}
+		return scanned;
+	}
+
+	@Override
+	public long[] getTimeNanos() {
+		long[] nanos = ruleValues(sums(), SAMPLED_NANOS);
+		for(int i=0; i<nanos.length; ++i) {
+			nanos[i] *= SAMPLING_PERIOD;
+		}
+		return nanos;
+	}
+
+	@Override
+	public long getCasCount() {
+		return sums()[mappings.length*RULE_SLOTS+CASES];
+	}
+
+	@Override
+	public long getTargetsCreated() {
+		return sums()[mappings.length*RULE_SLOTS+TARGETS];
+	}
+
+	@Override
+	public long getCasTimeNanos() {
+		return sums()[mappings.length*RULE_SLOTS+CAS_NANOS];
+	}
+
+	@Override
+	public String getReport() {
+		final long[] sums = sums();
+		List<Integer> order = new ArrayList<Integer>(mappings.length);
+		for(int i=0; i<mappings.length; ++i) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				long nanos1 = sums[i1*RULE_SLOTS+SAMPLED_NANOS];
+				long nanos2 = sums[i2*RULE_SLOTS+SAMPLED_NANOS];
+				return nanos1<nanos2? 1 : nanos1>nanos2? -1 : i1.compareTo(i2);
+			}
+		});
+
+		int totals = mappings.length*RULE_SLOTS;
+		StringBuilder sb = new StringBuilder();
+		sb.append(sums[totals+CASES]).append(" CASes, ")
+		.append(sums[totals+TARGETS]).append(" targets created in ")
+		.append(sums[totals+CAS_NANOS]/1000000).append(" ms");
+		for(int i : order) {
+			long scanned = sums[i*RULE_SLOTS+SCANNED];
+			long matched = sums[i*RULE_SLOTS+MATCHED];
+			sb.append('\n').append(mappings[i])
+			.append(": scanned ").append(scanned)
+			.append(", matched ").append(matched)
+			.append(", failed ").append(scanned-matched)
+			.append(", ~").append(sums[i*RULE_SLOTS+SAMPLED_NANOS]*SAMPLING_PERIOD/1000000).append(" ms");
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		long[] sums = new long[size];
+		for(long[] block : blocks) {
+			for(int i=0; i<size; ++i) {
+				sums[i] += block[i];
+			}
+		}
+		baseline = sums;
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+/**
+ * Management interface of the runtime metrics of a {@link NactemTypeMapper}. 
+ * Arrays hold one value per mapping of the definition, in mapping order.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+public interface MappingMetricsMBean {
+
+	/**
+	 * Mappings as <code>#number source [where condition] -> target</code>.
+	 */
+	String[] getMappings();
+
+	/**
+	 * Source feature structures each mapping was considered for.
+	 */
+	long[] getScanned();
+
+	/**
+	 * Source feature structures satisfying the condition of each mapping. 
+	 * Each creates a target, except when mapping idempotently, where those 
+	 * whose target is already in the CAS create none.
+	 */
+	long[] getMatched();
+
+	/**
+	 * Source feature structures not satisfying the condition of each mapping.
+	 */
+	long[] getFailed();
+
+	/**
+	 * Estimated time spent evaluating the condition of each mapping and 
+	 * creating its targets, in nanoseconds.
+	 */
+	long[] getTimeNanos();
+
+	long getCasCount();
+
+	long getTargetsCreated();
+
+	/**
+	 * Time spent applying all mappings to the CASes, in nanoseconds.
+	 */
+	long getCasTimeNanos();
+
+	/**
+	 * Rules sorted by decreasing time, one line each.
+	 */
+	String getReport();
+
+	/**
+	 * Restarts all counts from zero.
+	 */
+	void reset();
+}
@@ -0,0 +1,785 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIndexRepository;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.TypeMapperException;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.UndefinedType;
+import uk.ac.nactem.argo.components.typemapper.RuleGroup.ValueDispatch;
+
+/**
+ * The mappings compiled against a particular type system. A plan is 
+ * immutable once built and can be reused for every CAS sharing the type 
+ * system it was compiled for.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class MappingPlan {
+	private final TypeSystem typeSystem;
+	private final List<RulePlan> rules;
+	private final List<Scan> scans;
+	private final IndexingMode indexingMode;
+	// Size of the scratch array the rules read their source paths into
+	private final int sourceSlotCount;
+
+	private MappingPlan(TypeSystem typeSystem, List<RulePlan> rules, List<Scan> scans, 
+			IndexingMode indexingMode) {
+		this.typeSystem = typeSystem;
+		this.rules = Collections.unmodifiableList(rules);
+		this.scans = Collections.unmodifiableList(scans);
+		this.indexingMode = indexingMode;
+		int sourceSlotCount = 0;
+		for(RulePlan rule : rules) {
+			sourceSlotCount = Math.max(sourceSlotCount, rule.getSourceSlotCount());
+		}
+		this.sourceSlotCount = sourceSlotCount;
+	}
+
+	/**
+	 * Compiles the given type maps. Maps whose source or target type is not 
+	 * defined in the type system are left out of the plan, unless they are 
+	 * not meant to be ignored, in which case an exception is raised. 
+	 * Conditions comparing a feature to a value of an incompatible type are 
+	 * reported here rather than when the first feature structure is tested.
+	 */
+	static MappingPlan compile(List<TypeMap> typeMaps, TypeSystem ts, 
+			boolean ignoreMissingSourceType, boolean ignoreMissingTargetType, 
+			DispatchMode dispatchMode, IndexingMode indexingMode) throws TypeMapperException {
+		List<RulePlan> rules = new ArrayList<RulePlan>(typeMaps.size());
+		for(int i=0; i<typeMaps.size(); ++i) {
+			TypeMap typeMap = typeMaps.get(i);
+			int mapNumber = i+1;
+			String sourceTypeName = typeMap.getSourceTypeName();
+			Type sourceType = ts.getType(sourceTypeName);
+			String targetTypeName = typeMap.getTargetTypeName();
+			Type targetType = ts.getType(targetTypeName);
+
+			if (sourceType!=null && targetType!=null) {
+				rules.add(new RulePlan(mapNumber, typeMap, ts, sourceType, targetType));
+			}
+			else if (targetType==null && !ignoreMissingTargetType) {
+				throw new UndefinedType(mapNumber, "Target", targetTypeName);
+			}
+			else if (sourceType==null && !ignoreMissingSourceType) {
+				throw new UndefinedType(mapNumber, "Source", sourceTypeName);
+			}
+		}
+		List<Scan> scans = planScans(ts, rules, dispatchMode, indexingMode);
+		planIndexing(ts, scans, indexingMode);
+		return new MappingPlan(ts, rules, scans, indexingMode);
+	}
+
+	/**
+	 * Decides which indexes are iterated and which rules are applied to the 
+	 * feature structures found there. Other than sequentially, rules are 
+	 * split into stages of consecutive rules none of which reads the targets 
+	 * of another rule of the same stage, as sources or as annotations 
+	 * related by a span relation: a rule starts a new stage if it reads the 
+	 * targets of an earlier rule of the stage, or if an earlier rule reads 
+	 * its targets. The rules of a stage are then independent of each other, 
+	 * so that evaluating them in any order, grouped by source type or in a 
+	 * single pass, gives the same result as applying them one by one.
+	 */
+	private static List<Scan> planScans(TypeSystem ts, List<RulePlan> rules, 
+			DispatchMode dispatchMode, IndexingMode indexingMode) {
+		List<Scan> scans = new ArrayList<Scan>();
+		if (dispatchMode==DispatchMode.SEQUENTIAL) {
+			for(RulePlan rule : rules) {
+				scans.add(new Scan(rule.getSourceType(), new RulePlan[] { rule }, null));
+			}
+			return scans;
+		}
+
+		List<RulePlan> stage = new ArrayList<RulePlan>();
+		for(RulePlan rule : rules) {
+			if (dependsOnAny(ts, rule, stage) || feedsAny(ts, rule, stage)) {
+				planStage(ts, stage, dispatchMode, indexingMode, scans);
+				stage.clear();
+			}
+			stage.add(rule);
+		}
+		planStage(ts, stage, dispatchMode, indexingMode, scans);
+		return scans;
+	}
+
+	private static boolean dependsOnAny(TypeSystem ts, RulePlan rule, List<RulePlan> earlierRules) {
+		for(RulePlan earlierRule : earlierRules) {
+			if (ts.subsumes(rule.getSourceType(), earlierRule.getTargetType())) {
+				return true;
+			}
+			for(Type relatedType : rule.getRelatedTypes()) {
+				if (ts.subsumes(relatedType, earlierRule.getTargetType())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean feedsAny(TypeSystem ts, RulePlan rule, List<RulePlan> earlierRules) {
+		for(RulePlan earlierRule : earlierRules) {
+			if (ts.subsumes(earlierRule.getSourceType(), rule.getTargetType())) {
+				return true;
+			}
+			for(Type relatedType : earlierRule.getRelatedTypes()) {
+				if (ts.subsumes(relatedType, rule.getTargetType())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void planStage(TypeSystem ts, List<RulePlan> stage, 
+			DispatchMode dispatchMode, IndexingMode indexingMode, List<Scan> scans) {
+		if (stage.isEmpty()) return;
+
+		Map<Type, List<RulePlan>> rulesBySourceType = new LinkedHashMap<Type, List<RulePlan>>();
+		for(RulePlan rule : stage) {
+			List<RulePlan> sourceTypeRules = rulesBySourceType.get(rule.getSourceType());
+			if (sourceTypeRules==null) {
+				sourceTypeRules = new ArrayList<RulePlan>();
+				rulesBySourceType.put(rule.getSourceType(), sourceTypeRules);
+			}
+			sourceTypeRules.add(rule);
+		}
+
+		if (dispatchMode==DispatchMode.SUPERTYPE && rulesBySourceType.size()>1) {
+			Type supertype = commonSupertype(ts, rulesBySourceType.keySet());
+			// Targets added to the index being iterated would be visited 
+			// (or invalidate the iterator), so unless their indexing is 
+			// deferred, fall back to one scan per source type in that case.
+			if (indexingMode!=IndexingMode.IMMEDIATE || !subsumesAnyTarget(ts, supertype, stage)) {
+				scans.add(new Scan(supertype, toArray(stage), dispatchTable(ts, stage)));
+				return;
+			}
+		}
+
+		for(Map.Entry<Type, List<RulePlan>> entry : rulesBySourceType.entrySet()) {
+			scans.add(new Scan(entry.getKey(), toArray(entry.getValue()), null));
+		}
+	}
+
+	/**
+	 * Decides after which scans deferred targets are added to the indexes: 
+	 * after every scan, or only before a scan iterating over an index they 
+	 * belong to or relating its sources to them, and at the end of the CAS. 
+	 * Such a scan only applies rules coming after those of the targets in 
+	 * mapping order, since the rules of a stage do not read each other's 
+	 * targets; an earlier rule never sees the targets of a later one.
+	 */
+	private static void planIndexing(TypeSystem ts, List<Scan> scans, IndexingMode indexingMode) {
+		if (indexingMode==IndexingMode.IMMEDIATE) return;
+
+		List<RulePlan> pendingRules = new ArrayList<RulePlan>();
+		for(int i=0; i<scans.size(); ++i) {
+			Scan scan = scans.get(i);
+			Collections.addAll(pendingRules, scan.getRules());
+			boolean lastScan = i==scans.size()-1;
+			if (indexingMode==IndexingMode.PER_SCAN || lastScan 
+					|| readsAnyTarget(ts, scans.get(i+1), pendingRules)) {
+				scan.indexesTargetsAfter = true;
+				pendingRules.clear();
+			}
+		}
+	}
+
+	private static Type commonSupertype(TypeSystem ts, Iterable<Type> types) {
+		Type supertype = null;
+		for(Type type : types) {
+			if (supertype==null) {
+				supertype = type;
+			}
+			while(!ts.subsumes(supertype, type)) {
+				supertype = ts.getParent(supertype);
+			}
+		}
+		return supertype;
+	}
+
+	private static boolean readsAnyTarget(TypeSystem ts, Scan scan, List<RulePlan> rules) {
+		if (subsumesAnyTarget(ts, scan.getScannedType(), rules)) {
+			return true;
+		}
+		for(Type relatedType : scan.getRelatedTypes()) {
+			if (subsumesAnyTarget(ts, relatedType, rules)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean subsumesAnyTarget(TypeSystem ts, Type type, List<RulePlan> rules) {
+		for(RulePlan rule : rules) {
+			if (ts.subsumes(type, rule.getTargetType())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Maps every type a rule of the stage applies to, i.e. each source type 
+	 * and its subtypes, to the rules applying to it, in mapping order.
+	 */
+	private static Map<Type, RulePlan[]> dispatchTable(TypeSystem ts, List<RulePlan> stage) {
+		Map<Type, List<RulePlan>> rulesByType = new IdentityHashMap<Type, List<RulePlan>>();
+		for(RulePlan rule : stage) {
+			Type sourceType = rule.getSourceType();
+			addRule(rulesByType, sourceType, rule);
+			for(Type subtype : ts.getProperlySubsumedTypes(sourceType)) {
+				addRule(rulesByType, subtype, rule);
+			}
+		}
+		Map<Type, RulePlan[]> dispatchTable = new IdentityHashMap<Type, RulePlan[]>();
+		for(Map.Entry<Type, List<RulePlan>> entry : rulesByType.entrySet()) {
+			dispatchTable.put(entry.getKey(), toArray(entry.getValue()));
+		}
+		return dispatchTable;
+	}
+
+	private static void addRule(Map<Type, List<RulePlan>> rulesByType, Type type, RulePlan rule) {
+		List<RulePlan> typeRules = rulesByType.get(type);
+		if (typeRules==null) {
+			typeRules = new ArrayList<RulePlan>();
+			rulesByType.put(type, typeRules);
+		}
+		typeRules.add(rule);
+	}
+
+	private static RulePlan[] toArray(List<RulePlan> rules) {
+		return rules.toArray(new RulePlan[rules.size()]);
+	}
+
+	TypeSystem getTypeSystem() {
+		return typeSystem;
+	}
+
+	List<RulePlan> getRules() {
+		return rules;
+	}
+
+	List<Scan> getScans() {
+		return scans;
+	}
+
+	/**
+	 * Applies the plan to the given CAS, adding the created feature 
+	 * structures to its indexes. When indexing is deferred, targets are 
+	 * buffered while the source indexes are iterated and added to the indexes 
+	 * in a batch, in the order they were created. Span relations are tested 
+	 * against the annotations indexed when the scan testing them starts.
+	 * 
+	 * @return the number of feature structures created
+	 */
+	int apply(CAS cas) throws TypeMapperException {
+		try {
+			return apply(cas, null, 1, 0, null, null);
+		} catch (InterruptedException e) {
+			// Only raised when evaluating in parallel
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Applies the plan to the given CAS, evaluating in parallel the scans 
+	 * over indexes holding at least two partitions of the given minimum size.
+	 * <p>
+	 * The feature structures of such a scan are first collected from the 
+	 * index, then partitioned across the executor which only reads from the 
+	 * CAS: it evaluates the conditions and records which rules matched which 
+	 * source. The targets are then created from these matches in a single 
+	 * thread, in the same order as when evaluating sequentially, since the 
+	 * CAS does not support concurrent writes.
+	 * 
+	 * @param metrics counters of the rules, or null not to count
+	 * @param targets index of the targets of the CAS, skipping those 
+	 * identical to existing ones, or null to create all targets
+	 * @return the number of feature structures created
+	 */
+	int apply(CAS cas, ExecutorService executor, int threads, int minPartitionSize, 
+			MappingMetrics metrics, TargetIndex targets) throws TypeMapperException, InterruptedException {
+		int created = 0;
+		FSIndexRepository indexRepo = cas.getIndexRepository();
+		List<FeatureStructure> pendingTargets = indexingMode!=IndexingMode.IMMEDIATE? 
+				new ArrayList<FeatureStructure>() : null;
+		long[] counters = metrics!=null? metrics.counters() : null;
+		FeatureStructure[] sourceSlots = new FeatureStructure[sourceSlotCount];
+		SpanIndex.Cache spans = new SpanIndex.Cache(cas);
+		for(Scan scan : scans) {
+			int createdBefore = created;
+			spans.prepare(scan.getRelatedTypes());
+			FSIterator<FeatureStructure> fsIter = indexRepo.getAllIndexedFS(scan.getScannedType());
+			if (executor!=null && threads>1) {
+				created += applyInParallel(scan, fsIter, cas, spans, pendingTargets, executor, 
+						threads, minPartitionSize, metrics, targets, sourceSlots);
+			}
+			else {
+				int[] groupCounts = counters!=null? new int[scan.getRuleGroups().length] : null;
+				while(fsIter.hasNext()) {
+					FeatureStructure sourceFs = fsIter.next();
+					RuleGroup ruleGroup = scan.ruleGroupFor(sourceFs);
+					if (counters!=null) {
+						if (ruleGroup.getIndex()>=0) 
+							++groupCounts[ruleGroup.getIndex()];
+						if (MappingMetrics.sample(counters)) {
+							created += applySampled(ruleGroup, sourceFs, cas, spans, pendingTargets, counters, 
+									targets, sourceSlots);
+							continue;
+						}
+					}
+					for(RulePlan rule : ruleGroup.getTestedRules()) {
+						if (rule.conditionSatisfied(sourceFs, spans)) {
+							created += createTarget(rule, sourceFs, cas, pendingTargets, counters, targets, sourceSlots);
+						}
+					}
+					for(ValueDispatch valueDispatch : ruleGroup.getValueDispatches()) {
+						for(RulePlan rule : valueDispatch.matchingRules(sourceFs)) {
+							created += createTarget(rule, sourceFs, cas, pendingTargets, counters, targets, sourceSlots);
+						}
+					}
+				}
+				if (counters!=null) {
+					scan.countScanned(counters, groupCounts);
+				}
+			}
+			if (pendingTargets==null? created>createdBefore 
+					: scan.indexesTargetsAfter && !pendingTargets.isEmpty()) {
+				spans.invalidate();
+			}
+			if (pendingTargets!=null && scan.indexesTargetsAfter) {
+				addToIndexes(cas, pendingTargets);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Applies the plan to several views of a CAS, evaluating each scan over 
+	 * the views in parallel. The views have disjoint indexes but share the 
+	 * heap of their CAS, which does not support concurrent writes: the 
+	 * conditions of a scan are evaluated on the executor, one task per view, 
+	 * then the targets of each view are created in this thread before the 
+	 * next scan, which may read them. The views get the same targets as when 
+	 * the plan is applied to each in turn.
+	 * 
+	 * @param metrics counters of the rules, or null not to count
+	 * @param targets index of the targets of each view, or null to create 
+	 * all targets
+	 * @return the number of feature structures created
+	 */
+	int applyToViews(CAS[] views, ExecutorService executor, MappingMetrics metrics, 
+			TargetIndex[] targets) throws TypeMapperException, InterruptedException {
+		int created = 0;
+		long[] counters = metrics!=null? metrics.counters() : null;
+		FeatureStructure[] sourceSlots = new FeatureStructure[sourceSlotCount];
+		SpanIndex.Cache[] spans = new SpanIndex.Cache[views.length];
+		List<List<FeatureStructure>> pendingTargets = new ArrayList<List<FeatureStructure>>(views.length);
+		for(int v=0; v<views.length; ++v) {
+			spans[v] = new SpanIndex.Cache(views[v]);
+			pendingTargets.add(indexingMode!=IndexingMode.IMMEDIATE? new ArrayList<FeatureStructure>() : null);
+		}
+		for(Scan scan : scans) {
+			FeatureStructure[][] sources = new FeatureStructure[views.length][];
+			List<Callable<Matches>> tasks = new ArrayList<Callable<Matches>>(views.length);
+			for(int v=0; v<views.length; ++v) {
+				spans[v].prepare(scan.getRelatedTypes());
+				sources[v] = collect(views[v].getIndexRepository().getAllIndexedFS(scan.getScannedType()));
+				tasks.add(matchTask(scan, sources[v], 0, sources[v].length, spans[v], metrics));
+			}
+			List<Future<Matches>> results = executor.invokeAll(tasks);
+			for(int v=0; v<views.length; ++v) {
+				List<FeatureStructure> viewPendingTargets = pendingTargets.get(v);
+				int viewCreated = createMatched(getMatches(results.get(v)), sources[v], views[v], 
+						viewPendingTargets, counters, targets!=null? targets[v] : null, sourceSlots);
+				if (viewPendingTargets==null? viewCreated>0 
+						: scan.indexesTargetsAfter && !viewPendingTargets.isEmpty()) {
+					spans[v].invalidate();
+				}
+				if (viewPendingTargets!=null && scan.indexesTargetsAfter) {
+					addToIndexes(views[v], viewPendingTargets);
+				}
+				created += viewCreated;
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Applies a group of rules to a feature structure as in {@link #apply}, 
+	 * recording the time spent on each rule. The time spent looking up a 
+	 * value dispatch is shared between the rules of its family.
+	 */
+	private static int applySampled(RuleGroup ruleGroup, FeatureStructure sourceFs, CAS cas, 
+			SpanIndex.Cache spans, List<FeatureStructure> pendingTargets, long[] counters, 
+			TargetIndex targets, FeatureStructure[] sourceSlots) throws TypeMapperException {
+		int created = 0;
+		long start = System.nanoTime();
+		for(RulePlan rule : ruleGroup.getTestedRules()) {
+			if (rule.conditionSatisfied(sourceFs, spans)) {
+				created += createTarget(rule, sourceFs, cas, pendingTargets, counters, targets, sourceSlots);
+			}
+			long end = System.nanoTime();
+			MappingMetrics.sampled(counters, rule, end-start);
+			start = end;
+		}
+		for(ValueDispatch valueDispatch : ruleGroup.getValueDispatches()) {
+			RulePlan[] matchingRules = valueDispatch.matchingRules(sourceFs);
+			long end = System.nanoTime();
+			RulePlan[] family = valueDispatch.getRules();
+			for(RulePlan rule : family) {
+				MappingMetrics.sampled(counters, rule, (end-start)/family.length);
+			}
+			start = end;
+			for(RulePlan rule : matchingRules) {
+				created += createTarget(rule, sourceFs, cas, pendingTargets, counters, targets, sourceSlots);
+				end = System.nanoTime();
+				MappingMetrics.sampled(counters, rule, end-start);
+				start = end;
+			}
+		}
+		return created;
+	}
+
+	private static int applyInParallel(Scan scan, FSIterator<FeatureStructure> fsIter, 
+			CAS cas, SpanIndex.Cache spans, List<FeatureStructure> pendingTargets, 
+			ExecutorService executor, int threads, int minPartitionSize, MappingMetrics metrics, 
+			TargetIndex targets, FeatureStructure[] sourceSlots) 
+			throws TypeMapperException, InterruptedException {
+		FeatureStructure[] sources = collect(fsIter);
+
+		int partitions = Math.min(threads, sources.length/Math.max(minPartitionSize, 1));
+		if (partitions<2) {
+			partitions = 1;
+		}
+		List<Callable<Matches>> tasks = new ArrayList<Callable<Matches>>(partitions);
+		for(int p=0; p<partitions; ++p) {
+			int from = (int) ((long) sources.length*p/partitions);
+			int to = (int) ((long) sources.length*(p+1)/partitions);
+			tasks.add(matchTask(scan, sources, from, to, spans, metrics));
+		}
+
+		List<Future<Matches>> results;
+		if (partitions==1) {
+			results = null;
+		}
+		else {
+			results = executor.invokeAll(tasks);
+		}
+		// Targets are created in this thread, their creation being sampled 
+		// separately from the evaluation of the conditions
+		long[] counters = metrics!=null? metrics.counters() : null;
+		int created = 0;
+		for(int p=0; p<partitions; ++p) {
+			Matches matches = results!=null? getMatches(results.get(p)) : getMatches(tasks.get(p));
+			created += createMatched(matches, sources, cas, pendingTargets, counters, targets, sourceSlots);
+		}
+		return created;
+	}
+
+	private static FeatureStructure[] collect(FSIterator<FeatureStructure> fsIter) {
+		List<FeatureStructure> sourceList = new ArrayList<FeatureStructure>();
+		while(fsIter.hasNext()) {
+			sourceList.add(fsIter.next());
+		}
+		return sourceList.toArray(new FeatureStructure[sourceList.size()]);
+	}
+
+	private static Matches getMatches(Future<Matches> result) 
+			throws TypeMapperException, InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TypeMapperException) 
+				throw (TypeMapperException) cause;
+			if (cause instanceof RuntimeException) 
+				throw (RuntimeException) cause;
+			if (cause instanceof Error) 
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static Matches getMatches(Callable<Matches> task) throws TypeMapperException {
+		try {
+			return task.call();
+		} catch (TypeMapperException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates the targets of the matches of a partition, in evaluation order.
+	 * 
+	 * @return the number of feature structures created
+	 */
+	private static int createMatched(Matches matches, FeatureStructure[] sources, 
+			CAS cas, List<FeatureStructure> pendingTargets, long[] counters, TargetIndex targets, 
+			FeatureStructure[] sourceSlots) throws TypeMapperException {
+		int created = 0;
+		for(int i=0; i<matches.size; ++i) {
+			if (counters!=null && MappingMetrics.sample(counters)) {
+				long start = System.nanoTime();
+				created += createTarget(matches.rules[i], sources[matches.sources[i]], cas, 
+						pendingTargets, counters, targets, sourceSlots);
+				MappingMetrics.sampled(counters, matches.rules[i], System.nanoTime()-start);
+			}
+			else {
+				created += createTarget(matches.rules[i], sources[matches.sources[i]], cas, 
+						pendingTargets, counters, targets, sourceSlots);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * A task evaluating the conditions of a scan over a range of its source 
+	 * feature structures, only reading from the CAS.
+	 */
+	private static Callable<Matches> matchTask(final Scan scan, final FeatureStructure[] sources, 
+			final int from, final int to, final SpanIndex.Cache spans, final MappingMetrics metrics) {
+		return new Callable<Matches>() {
+			@Override
+			public Matches call() throws TypeMapperException {
+				long[] counters = metrics!=null? metrics.counters() : null;
+				int[] groupCounts = counters!=null? new int[scan.getRuleGroups().length] : null;
+				Matches matches = new Matches(Math.max(16, to-from));
+				for(int i=from; i<to; ++i) {
+					FeatureStructure sourceFs = sources[i];
+					RuleGroup ruleGroup = scan.ruleGroupFor(sourceFs);
+					if (counters!=null) {
+						if (ruleGroup.getIndex()>=0) 
+							++groupCounts[ruleGroup.getIndex()];
+						if (MappingMetrics.sample(counters)) {
+							matchSampled(ruleGroup, i, matches, counters);
+							continue;
+						}
+					}
+					for(RulePlan rule : ruleGroup.getTestedRules()) {
+						if (rule.conditionSatisfied(sourceFs, spans)) {
+							matches.add(i, rule);
+						}
+					}
+					for(ValueDispatch valueDispatch : ruleGroup.getValueDispatches()) {
+						for(RulePlan rule : valueDispatch.matchingRules(sourceFs)) {
+							matches.add(i, rule);
+						}
+					}
+				}
+				if (counters!=null) {
+					scan.countScanned(counters, groupCounts);
+				}
+				return matches;
+			}
+
+			private void matchSampled(RuleGroup ruleGroup, int i, Matches matches, 
+					long[] counters) throws TypeMapperException {
+				FeatureStructure sourceFs = sources[i];
+				long start = System.nanoTime();
+				for(RulePlan rule : ruleGroup.getTestedRules()) {
+					if (rule.conditionSatisfied(sourceFs, spans)) {
+						matches.add(i, rule);
+					}
+					long end = System.nanoTime();
+					MappingMetrics.sampled(counters, rule, end-start);
+					start = end;
+				}
+				for(ValueDispatch valueDispatch : ruleGroup.getValueDispatches()) {
+					for(RulePlan rule : valueDispatch.matchingRules(sourceFs)) {
+						matches.add(i, rule);
+					}
+					long end = System.nanoTime();
+					RulePlan[] family = valueDispatch.getRules();
+					for(RulePlan rule : family) {
+						MappingMetrics.sampled(counters, rule, (end-start)/family.length);
+					}
+					start = end;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Creates the target of a matched rule, unless an identical target is 
+	 * already in the index of targets.
+	 * 
+	 * @return the number of feature structures created
+	 */
+	private static int createTarget(RulePlan rule, FeatureStructure sourceFs, CAS cas, 
+			List<FeatureStructure> pendingTargets, long[] counters, TargetIndex targets, 
+			FeatureStructure[] sourceSlots) throws TypeMapperException {
+		if (counters!=null) {
+			MappingMetrics.matched(counters, rule);
+		}
+		if (targets!=null && !targets.add(rule, sourceFs)) {
+			return 0;
+		}
+		FeatureStructure targetFs = rule.createTarget(sourceFs, cas, sourceSlots);
+		if (pendingTargets!=null) {
+			pendingTargets.add(targetFs);
+		}
+		else {
+			cas.addFsToIndexes(targetFs);
+		}
+		return 1;
+	}
+
+	private static void addToIndexes(CAS cas, List<FeatureStructure> targets) {
+		for(int i=0; i<targets.size(); ++i) {
+			cas.addFsToIndexes(targets.get(i));
+		}
+		targets.clear();
+	}
+
+	/**
+	 * The rules matched by the feature structures of a partition, as pairs of 
+	 * source position and rule, in evaluation order.
+	 */
+	private static class Matches {
+		private int[] sources;
+		private RulePlan[] rules;
+		private int size = 0;
+
+		Matches(int capacity) {
+			sources = new int[capacity];
+			rules = new RulePlan[capacity];
+		}
+
+		void add(int source, RulePlan rule) {
+			if (size==sources.length) {
+				sources = Arrays.copyOf(sources, size*2);
+				rules = Arrays.copyOf(rules, size*2);
+			}
+			sources[size] = source;
+			rules[size] = rule;
+			++size;
+		}
+	}
+
+	/**
+	 * A single iteration over the index of a type, applying a set of rules 
+	 * to each feature structure found.
+	 */
+	static class Scan {
+		private final Type scannedType;
+		private final RulePlan[] rules;
+		// Types of the annotations the rules relate their sources to
+		private final Type[] relatedTypes;
+		private final RuleGroup ruleGroup;
+		// Distinct rule groups of the scan, by index
+		private final RuleGroup[] groups;
+		// Rules per concrete type when not all rules apply to every feature 
+		// structure of the scanned type
+		private final Map<Type, RuleGroup> dispatchTable;
+		// Whether deferred targets are added to the indexes after this scan
+		private boolean indexesTargetsAfter;
+
+		Scan(Type scannedType, RulePlan[] rules, Map<Type, RulePlan[]> dispatchTable) {
+			this.scannedType = scannedType;
+			this.rules = rules;
+			Set<Type> relatedTypes = new LinkedHashSet<Type>();
+			for(RulePlan rule : rules) {
+				Collections.addAll(relatedTypes, rule.getRelatedTypes());
+			}
+			this.relatedTypes = relatedTypes.toArray(new Type[relatedTypes.size()]);
+			if (dispatchTable!=null) {
+				this.ruleGroup = null;
+				// Subtypes of the same source types share their rule groups
+				Map<List<RulePlan>, RuleGroup> groups = new LinkedHashMap<List<RulePlan>, RuleGroup>();
+				this.dispatchTable = new IdentityHashMap<Type, RuleGroup>();
+				for(Map.Entry<Type, RulePlan[]> entry : dispatchTable.entrySet()) {
+					List<RulePlan> typeRules = Arrays.asList(entry.getValue());
+					RuleGroup group = groups.get(typeRules);
+					if (group==null) {
+						group = RuleGroup.of(entry.getValue(), groups.size());
+						groups.put(typeRules, group);
+					}
+					this.dispatchTable.put(entry.getKey(), group);
+				}
+				this.groups = groups.values().toArray(new RuleGroup[groups.size()]);
+			}
+			else {
+				this.ruleGroup = RuleGroup.of(rules, 0);
+				this.groups = new RuleGroup[] { ruleGroup };
+				this.dispatchTable = null;
+			}
+		}
+
+		Type getScannedType() {
+			return scannedType;
+		}
+
+		RulePlan[] getRules() {
+			return rules;
+		}
+
+		Type[] getRelatedTypes() {
+			return relatedTypes;
+		}
+
+		RuleGroup[] getRuleGroups() {
+			return groups;
+		}
+
+		/**
+		 * Adds to the scanned counts of the rules the number of feature 
+		 * structures each group of rules was applied to.
+		 */
+		void countScanned(long[] counters, int[] groupCounts) {
+			for(int i=0; i<groups.length; ++i) {
+				if (groupCounts[i]==0) continue;
+				for(RulePlan rule : groups[i].getRules()) {
+					MappingMetrics.scanned(counters, rule, groupCounts[i]);
+				}
+			}
+		}
+
+		RuleGroup ruleGroupFor(FeatureStructure fs) {
+			if (dispatchTable==null) {
+				return ruleGroup;
+			}
+			RuleGroup group = dispatchTable.get(fs.getType());
+			return group!=null? group : RuleGroup.EMPTY;
+		}
+	}
+}
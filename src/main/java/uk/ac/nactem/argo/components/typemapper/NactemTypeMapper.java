@@ -16,32 +16,44 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 package uk.ac.nactem.argo.components.typemapper;
-import java.util.HashSet;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.apache.uima.UimaContext;
-import org.apache.uima.analysis_component.CasAnnotator_ImplBase;
+import org.apache.uima.UimaContextAdmin;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
 import org.apache.uima.cas.CAS;
-import org.apache.uima.cas.CommonArrayFS;
+import org.apache.uima.cas.CASRuntimeException;
 import org.apache.uima.cas.FSIndexRepository;
-import org.apache.uima.cas.FSIterator;
-import org.apache.uima.cas.Feature;
-import org.apache.uima.cas.FeatureStructure;
-import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.descriptor.ResourceMetaData;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Level;
+import org.apache.uima.util.Logger;
 
-import uk.ac.nactem.argo.components.typemapper.FSReference.ArrayReference;
-import uk.ac.nactem.argo.components.typemapper.FSReference.FSFeatureReference;
-import uk.ac.nactem.argo.components.typemapper.TypeMap.ComparisonOperator;
+import uk.ac.nactem.argo.components.typemapper.MappingCache.CachedMapping;
 import uk.ac.nactem.argo.components.typemapper.TypeMap.Condition;
-import uk.ac.nactem.argo.components.typemapper.TypeMap.FeatureMap;
 import uk.ac.nactem.argo.components.typemapper.TypeMap.FeaturePath;
 import uk.ac.nactem.argo.components.typemapper.TypeMapBuilder.ParseException;
 
@@ -56,8 +68,26 @@ public class NactemTypeMapper extends JCasAnnotator_ImplBase {
 	 * Definition of mappings from source types to target types.
 	 */
 	public static final String PARAM_NAME_MAP = "mappingDefinition";
-	@ConfigurationParameter(name = PARAM_NAME_MAP,  mandatory = true)
+	@ConfigurationParameter(name = PARAM_NAME_MAP,  mandatory = false)
 	private String mappingDefinition;
+
+	/**
+	 * File paths, URLs or classpath resources of mapping definitions, either 
+	 * text or compiled, whose type maps are applied in order. Used instead of 
+	 * the mapping definition for large mappings, since files are parsed as 
+	 * they are read and may include other files.
+	 */
+	public static final String PARAM_NAME_MAP_FILES = "mappingFiles";
+	@ConfigurationParameter(name = PARAM_NAME_MAP_FILES,  mandatory = false)
+	private String[] mappingFiles;
+
+	/**
+	 * File path, URL or classpath resource of type maps compiled with 
+	 * {@link TypeMapBuilder}, used instead of the mapping definition.
+	 */
+	public static final String PARAM_NAME_COMPILED_MAP = "compiledMapping";
+	@ConfigurationParameter(name = PARAM_NAME_COMPILED_MAP,  mandatory = false)
+	private String compiledMapping;
 	
 	public static final String PARAM_NAME_IGNORE_MISSING_SOURCE = "ignoreMissingSourceType";
 	@ConfigurationParameter(name = PARAM_NAME_IGNORE_MISSING_SOURCE, defaultValue = "true", mandatory = false)
@@ -67,23 +97,222 @@ public class NactemTypeMapper extends JCasAnnotator_ImplBase {
 	@ConfigurationParameter(name = PARAM_NAME_IGNORE_MISSING_TARGET, defaultValue = "false", mandatory = false)
 	private boolean ignoreMissingTargetType;
 
-	private List<TypeMap> typeMaps = null;
-	private TypeSystem currentTs = null;
-	private int currentMapIdx = 0;
+	/**
+	 * How rules are dispatched to the feature structures of their source 
+	 * types; see {@link DispatchMode}.
+	 */
+	public static final String PARAM_NAME_DISPATCH_MODE = "dispatchMode";
+	@ConfigurationParameter(name = PARAM_NAME_DISPATCH_MODE, defaultValue = "SEQUENTIAL", mandatory = false)
+	private DispatchMode dispatchMode;
+
+	/**
+	 * When created feature structures are added to the indexes; see 
+	 * {@link IndexingMode}.
+	 */
+	public static final String PARAM_NAME_INDEXING_MODE = "indexingMode";
+	@ConfigurationParameter(name = PARAM_NAME_INDEXING_MODE, defaultValue = "IMMEDIATE", mandatory = false)
+	private IndexingMode indexingMode;
+
+	/**
+	 * Number of threads evaluating the conditions of large scans in 
+	 * parallel; 1 evaluates everything in the calling thread.
+	 */
+	public static final String PARAM_NAME_THREADS = "threads";
+	@ConfigurationParameter(name = PARAM_NAME_THREADS, defaultValue = "1", mandatory = false)
+	private int threads;
+
+	/**
+	 * Minimum number of source feature structures per parallel partition; 
+	 * smaller scans are evaluated in the calling thread.
+	 */
+	public static final String PARAM_NAME_MIN_PARTITION_SIZE = "minPartitionSize";
+	@ConfigurationParameter(name = PARAM_NAME_MIN_PARTITION_SIZE, defaultValue = "10000", mandatory = false)
+	private int minPartitionSize;
+
+	/**
+	 * Names of the views to map, or a single <code>*</code> to map every 
+	 * view of the CAS; by default only the view passed to the component is 
+	 * mapped. Views absent from a CAS are skipped.
+	 */
+	public static final String PARAM_NAME_VIEWS = "views";
+	@ConfigurationParameter(name = PARAM_NAME_VIEWS, mandatory = false)
+	private String[] views;
+	private static final String ALL_VIEWS = "*";
+
+	/**
+	 * Whether to evaluate the mappings over several views in parallel, one 
+	 * view per thread, when more than one thread is configured.
+	 */
+	public static final String PARAM_NAME_PARALLEL_VIEWS = "parallelViews";
+	@ConfigurationParameter(name = PARAM_NAME_PARALLEL_VIEWS, defaultValue = "false", mandatory = false)
+	private boolean parallelViews;
+
+	/**
+	 * Whether to skip creating a target identical to one already in the CAS, 
+	 * that is of the same type and with the same feature values, so that 
+	 * mapping a CAS again does not duplicate its targets.
+	 */
+	public static final String PARAM_NAME_IDEMPOTENT = "idempotent";
+	@ConfigurationParameter(name = PARAM_NAME_IDEMPOTENT, defaultValue = "false", mandatory = false)
+	private boolean idempotent;
+
+	/**
+	 * Whether to count, for each mapping, the feature structures scanned and 
+	 * matched and the time spent, and to expose the counts as a JMX MBean.
+	 */
+	public static final String PARAM_NAME_COLLECT_METRICS = "collectMetrics";
+	@ConfigurationParameter(name = PARAM_NAME_COLLECT_METRICS, defaultValue = "false", mandatory = false)
+	private boolean collectMetrics;
+
+	/**
+	 * Whether to log the metrics of each mapping at the end of the 
+	 * collection, when they are collected.
+	 */
+	public static final String PARAM_NAME_LOG_METRICS = "logMetrics";
+	@ConfigurationParameter(name = PARAM_NAME_LOG_METRICS, defaultValue = "true", mandatory = false)
+	private boolean logMetrics;
+
+	/**
+	 * Interval in seconds at which the mapping files are checked for changes, 
+	 * and reloaded when they have changed; 0 never reloads them.
+	 */
+	public static final String PARAM_NAME_RELOAD_INTERVAL = "reloadInterval";
+	@ConfigurationParameter(name = PARAM_NAME_RELOAD_INTERVAL, defaultValue = "0", mandatory = false)
+	private int reloadInterval;
+
+	// The mapping in use with its plan for the type system of the last 
+	// processed CAS, replaced as a whole when either changes
+	private final AtomicReference<ActiveMapping> active = new AtomicReference<ActiveMapping>();
+	private ExecutorService executor = null;
+	private ScheduledExecutorService reloader = null;
+	private ObjectName metricsName = null;
+	// Message of the last failed reload, not to report the same failure at 
+	// every check
+	private volatile String lastReloadError = null;
 
 	@Override
 	public void initialize(UimaContext context)
 			throws ResourceInitializationException {
 		super.initialize(context);
+		CachedMapping mapping;
 		try {
-			typeMaps = TypeMapBuilder.build(mappingDefinition);
+			int definitions = (mappingDefinition!=null? 1 : 0)+(compiledMapping!=null? 1 : 0)
+					+(mappingFiles!=null && mappingFiles.length>0? 1 : 0);
+			if (definitions!=1) {
+				throw new ResourceInitializationException(new Exception("Exactly one of "+PARAM_NAME_MAP+
+						", "+PARAM_NAME_MAP_FILES+" and "+PARAM_NAME_COMPILED_MAP+" must be set."));
+			}
+			mapping = loadMapping();
 		} catch (ParseException e) {
 			throw new ResourceInitializationException(e);
+		} catch (IOException e) {
+			throw new ResourceInitializationException(e);
 		}
 
-		if (typeMaps==null || typeMaps.size()==0) {
+		if (mapping.getTypeMaps().size()==0) {
 			throw new ResourceInitializationException(new Exception("No type mapping defined."));
 		}
+		MappingMetrics metrics = collectMetrics? new MappingMetrics(mapping.getTypeMaps()) : null;
+		active.set(new ActiveMapping(mapping, null, null, metrics));
+		if (threads>1) {
+			executor = new ForkJoinPool(threads);
+		}
+		if (metrics!=null) {
+			metricsName = metricsName(context);
+			publishMetrics(metrics);
+		}
+		if (reloadInterval>0) {
+			if (mappingDefinition!=null) {
+				context.getLogger().log(Level.WARNING, "The mapping definition parameter cannot be "
+						+ "reloaded; use "+PARAM_NAME_MAP_FILES+" to reload mappings.");
+			}
+			else {
+				reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "type-mapper-reload");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				reloader.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						reload();
+					}
+				}, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	private CachedMapping loadMapping() throws ParseException, IOException {
+		if (mappingDefinition!=null) {
+			return MappingCache.get(mappingDefinition);
+		}
+		List<URL> urls = new ArrayList<URL>();
+		if (compiledMapping!=null) {
+			urls.add(TypeMapBuilder.locate(compiledMapping));
+		}
+		else {
+			for(String location : mappingFiles) {
+				urls.add(TypeMapBuilder.locate(location));
+			}
+		}
+		return MappingCache.getFiles(urls);
+	}
+
+	/**
+	 * Checks whether the mapping files have changed, and if so, builds the 
+	 * new mapping and its plan for the type system in use in this thread, 
+	 * before making it the active mapping. CASes being processed finish 
+	 * with the mapping they started with. The active mapping is kept if the 
+	 * new one cannot be built, and the failure is logged.
+	 */
+	private void reload() {
+		Logger logger = getContext().getLogger();
+		try {
+			CachedMapping mapping = loadMapping();
+			while(true) {
+				ActiveMapping current = active.get();
+				if (current==null || mapping==current.mapping) {
+					// Destroyed, or unchanged
+					return;
+				}
+				if (mapping.getTypeMaps().size()==0) {
+					reportReloadError(logger, "No type mapping defined.");
+					return;
+				}
+				MappingPlan plan = current.typeSystem!=null? compile(mapping, current.typeSystem) : null;
+				MappingMetrics metrics = current.metrics!=null? new MappingMetrics(mapping.getTypeMaps()) : null;
+				if (active.compareAndSet(current, new ActiveMapping(mapping, current.typeSystem, plan, metrics))) {
+					if (metrics!=null) {
+						if (logMetrics) {
+							logger.log(Level.INFO, "Type mapping metrics before reload: "+current.metrics.getReport());
+						}
+						publishMetrics(metrics);
+					}
+					logger.log(Level.INFO, "Type mapping reloaded: "+mapping.getTypeMaps().size()+" mappings.");
+					lastReloadError = null;
+					return;
+				}
+			}
+		} catch (ParseException e) {
+			reportReloadError(logger, e.getMessage());
+		} catch (IOException e) {
+			reportReloadError(logger, e.toString());
+		} catch (TypeMapperException e) {
+			reportReloadError(logger, e.getMessage());
+		} catch (RuntimeException e) {
+			// Would cancel further checks if thrown
+			reportReloadError(logger, e.toString());
+		}
+	}
+
+	private void reportReloadError(Logger logger, String message) {
+		if (!message.equals(lastReloadError)) {
+			logger.log(Level.SEVERE, "Type mapping not reloaded, the previous mapping is kept:\n"+message);
+			lastReloadError = message;
+		}
 	}
 
 	@Override
@@ -92,233 +321,223 @@ public class NactemTypeMapper extends JCasAnnotator_ImplBase {
 		FSIndexRepository indexRepo = cas.getIndexRepository();
 		if (indexRepo==null) return;
 
-		currentTs = cas.getTypeSystem();
-		
-		for(currentMapIdx=0; currentMapIdx<typeMaps.size(); ++currentMapIdx) {
-			TypeMap typeMap = typeMaps.get(currentMapIdx);
-			String sourceTypeName = typeMap.getSourceTypeName();
-			Type sourceType = currentTs.getType(sourceTypeName);
-			String targetTypeName = typeMap.getTargetTypeName();
-			Type targetType = currentTs.getType(targetTypeName);
-
-			if (sourceType!=null && targetType!=null) {
-				Set<Feature> commonFeatures = commonFeatures(sourceType, targetType);
-				FSIterator<FeatureStructure> fsIter = indexRepo.getAllIndexedFS(sourceType);
-				while(fsIter.hasNext()) {
-					FeatureStructure sourceFs = fsIter.next();
-
-					Condition condition = typeMap.getCondition();
-
-					try {
-						if (conditionSatisfied(sourceFs, condition)) {
-
-							FeatureStructure targetFs = cas.createFS(targetType);
-
-							// copy common features
-							copyFeatures(sourceFs, targetFs, commonFeatures);
-
-							List<FeatureMap> featureMaps = typeMap.getFeatureMaps();
-							for(FeatureMap featMap : featureMaps) {
-								Object value = null;
-								if (featMap.assignsValueDirectly()) {
-									value = featMap.getAssigneableValue();
-								} 
-								else {
-									FSReference fsRef = extractFSReference(sourceFs, featMap.getSourceFeaturePath());
-									value = fsRef.getValue();
-								}
-								FSReference targetFsRef = extractFSReference(targetFs, featMap.getTargetFeaturePath(), cas);
-								targetFsRef.setValue(value);
-							}
-
-							cas.addFsToIndexes(targetFs);
-						}
-					} catch (IncompatibleTypeComparison e) {
-						throw new AnalysisEngineProcessException(e);
-					} catch (InvalidFeaturePath e) {
-						throw new AnalysisEngineProcessException(e);
-					}
-				}
+		ActiveMapping current = getActive(cas.getTypeSystem());
+		MappingMetrics metrics = current.metrics;
+		CAS[] selectedViews = selectViews(cas);
+		TargetIndex[] targets = null;
+		if (idempotent) {
+			targets = new TargetIndex[selectedViews.length];
+			for(int i=0; i<selectedViews.length; ++i) {
+				targets[i] = new TargetIndex(selectedViews[i]);
+			}
+		}
+
+		try {
+			long start = System.nanoTime();
+			int created = 0;
+			if (parallelViews && executor!=null && selectedViews.length>1) {
+				created = current.plan.applyToViews(selectedViews, executor, metrics, targets);
 			}
-			else if (targetType==null && !ignoreMissingTargetType) {
-				throw new AnalysisEngineProcessException(new Exception(
-						"Target type '"+targetTypeName+"' not defined in the current type system.")); 
+			else {
+				for(int i=0; i<selectedViews.length; ++i) {
+					created += current.plan.apply(selectedViews[i], executor, threads, minPartitionSize, 
+							metrics, targets!=null? targets[i] : null);
+				}
 			}
-			else if (sourceType==null && !ignoreMissingSourceType) {
-				throw new AnalysisEngineProcessException(new Exception(
-						"Source type '"+sourceTypeName+"' not defined in the current type system.")); 
+			if (metrics!=null) {
+				metrics.casProcessed(metrics.counters(), created, System.nanoTime()-start);
 			}
+		} catch (TypeMapperException e) {
+			throw new AnalysisEngineProcessException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AnalysisEngineProcessException(e);
 		}
 	}
 
-	private boolean conditionSatisfied(FeatureStructure fs, Condition condition)
-			throws IncompatibleTypeComparison, InvalidFeaturePath {
-		if (condition==null) return true;
-
-		FSReference fsRef = extractFSReference(fs, condition.getFeaturePath());
-		Object lhsValue = fsRef.getValue();
-
-		Object rhsValue = condition.getValue();
-
-		if (!lhsValue.getClass().equals(rhsValue.getClass())) {
-			throw new IncompatibleTypeComparison(condition);
-		}
-
-		@SuppressWarnings("rawtypes")
-		Comparable lhs = (Comparable) lhsValue;
-		@SuppressWarnings("rawtypes")
-		Comparable rhs = (Comparable) rhsValue;
-		ComparisonOperator operator = condition.getComparisonOperator();
-		@SuppressWarnings("unchecked")
-		int score = lhs.compareTo(rhs);
-		switch(operator) {
-		case EQUAL:
-			return score==0;
-		case GREATER_THAN:
-			return score>0;
-		case GREATER_THAN_OR_EQUAL: 
-			return score>=0;
-		case LESS_THAN:
-			return score<0;
-		case LESS_THEN_OR_EQUAL:
-			return score<=0;
-		case NOT_EQUAL:
-			return score!=0;
-		}
-		return false;
-	}
-
-	private void copyFeatures(FeatureStructure sourceFs, FeatureStructure targetFs, Set<Feature> features) {
-		for(Feature feat : features) {
-			if (feat.getRange().isPrimitive()) {
-				copyPrimiteFeature(sourceFs, targetFs, feat);
+	/**
+	 * The views of the CAS to map, in the order they are named, or in the 
+	 * order of the CAS when all views are mapped.
+	 */
+	private CAS[] selectViews(CAS cas) {
+		if (views==null || views.length==0) {
+			return new CAS[] { cas };
+		}
+		Set<CAS> selected = new LinkedHashSet<CAS>();
+		if (views.length==1 && ALL_VIEWS.equals(views[0])) {
+			Iterator<CAS> viewIter = cas.getViewIterator();
+			while(viewIter.hasNext()) {
+				selected.add(viewIter.next());
 			}
-			else {
-				// TODO consider arrays
-				targetFs.setFeatureValue(feat, sourceFs.getFeatureValue(feat));
+		}
+		else {
+			for(String name : views) {
+				try {
+					selected.add(cas.getView(name));
+				} catch (CASRuntimeException e) {
+					// No such view in this CAS
+				}
 			}
 		}
+		return selected.toArray(new CAS[selected.size()]);
 	}
 
-	private void copyPrimiteFeature(FeatureStructure sourceFs,
-			FeatureStructure targetFs, Feature feat) {
-		String rangeName = feat.getRange().getName();
-		if (CAS.TYPE_NAME_STRING.equals(rangeName)) {
-			targetFs.setStringValue(feat, sourceFs.getStringValue(feat));
-		} else if (CAS.TYPE_NAME_INTEGER.equals(rangeName)) {
-			targetFs.setIntValue(feat, sourceFs.getIntValue(feat));
-		} else if (CAS.TYPE_NAME_FLOAT.equals(rangeName)) {
-			targetFs.setFloatValue(feat, sourceFs.getFloatValue(feat));
-		} else if (CAS.TYPE_NAME_BYTE.equals(rangeName)) {
-			targetFs.setByteValue(feat, sourceFs.getByteValue(feat));
-		} else if (CAS.TYPE_NAME_SHORT.equals(rangeName)) {
-			targetFs.setShortValue(feat, sourceFs.getShortValue(feat));
-		} else if (CAS.TYPE_NAME_LONG.equals(rangeName)) {
-			targetFs.setLongValue(feat, sourceFs.getLongValue(feat));
-		} else if (CAS.TYPE_NAME_DOUBLE.equals(rangeName)) {
-			targetFs.setDoubleValue(feat, sourceFs.getDoubleValue(feat));
-		} else if (CAS.TYPE_NAME_BOOLEAN.equals(rangeName)) {
-			targetFs.setBooleanValue(feat, sourceFs.getBooleanValue(feat));
+	@Override
+	public void collectionProcessComplete() throws AnalysisEngineProcessException {
+		super.collectionProcessComplete();
+		ActiveMapping current = active.get();
+		if (current!=null && current.metrics!=null && logMetrics) {
+			getContext().getLogger().log(Level.INFO, "Type mapping metrics: "+current.metrics.getReport());
 		}
 	}
 
-	private Set<Feature> commonFeatures(Type type1, Type type2) {
-		Set<Feature> type1Features = new HashSet<Feature>(type1.getFeatures());
-		Set<Feature> type2Features = new HashSet<Feature>(type2.getFeatures());
-		Set<Feature> commonFeatures = new HashSet<Feature>();
-		for(Feature feat : type1Features) {
-			if (type2Features.contains(feat)) {
-				commonFeatures.add(feat);
+	@Override
+	public void destroy() {
+		if (reloader!=null) {
+			reloader.shutdownNow();
+			reloader = null;
+		}
+		if (executor!=null) {
+			executor.shutdown();
+			executor = null;
+		}
+		if (metricsName!=null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+			} catch (JMException e) {
+				// Already unregistered
 			}
+			metricsName = null;
 		}
-		return commonFeatures;
+		active.set(null);
+		super.destroy();
 	}
 
-	private FSReference extractFSReference(FeatureStructure fs, FeaturePath path) throws InvalidFeaturePath {
-		return extractFSReference(fs, path, null);
+	/**
+	 * The name of the metrics MBean: the name of the component context and 
+	 * an identifier telling instances apart.
+	 */
+	private ObjectName metricsName(UimaContext context) {
+		String contextName = context instanceof UimaContextAdmin? 
+				((UimaContextAdmin) context).getQualifiedContextName() : "/";
+		try {
+			return new ObjectName(getClass().getPackage().getName()+":type="+
+					getClass().getSimpleName()+",name="+ObjectName.quote(contextName)+
+					",id="+Integer.toHexString(System.identityHashCode(this)));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
-	private FSReference extractFSReference(FeatureStructure fs, FeaturePath path, CAS cas) throws InvalidFeaturePath {
-		FeatureStructure ultimateFs = fs;
-		FSReference ref = null;
-		for(int pathIndex=0; pathIndex<path.size(); ++pathIndex) {
-			if (pathIndex>0) {
-				if (ref.isValueTypePrimitive()) {
-					throw new InvalidFeaturePath(path, "Unexpected segment after '"+path.toString(pathIndex)+"' whose range is primitive");
-				}
-				ultimateFs = (FeatureStructure) ref.getValue();
-
-				if (ultimateFs==null) {
-					// Proceed only if a CAS is supplied. 
-					if (cas==null) {
-						throw new InvalidFeaturePath(path, "Intermediate type "+ref.getFSType()+" returned null for feature "+ref.featureSegmentToString());
-					}
-
-					Type valueType = ref.getValueType();
-					if (valueType.isArray()) {
-						if (!path.isArrayIndex(pathIndex)) {
-							throw new InvalidFeaturePath(path, "Expected array reference; found '"+path.toString(pathIndex+1)+"'");
-						}
-						// Create an array of the size of the reference (+1).
-						ultimateFs = UimaUtils.createArray(cas, valueType, (Integer)path.get(pathIndex)+1);
-					}
-					else {
-						ultimateFs = cas.createFS(valueType);
-					}
-					ref.setValue(ultimateFs);
-				}
+	/**
+	 * Registers the metrics with the platform MBean server, replacing those 
+	 * of a previous mapping. Metrics are still collected and logged if 
+	 * registration fails.
+	 */
+	private void publishMetrics(MappingMetrics metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(metricsName)) {
+				server.unregisterMBean(metricsName);
 			}
+			server.registerMBean(metrics, metricsName);
+		} catch (JMException e) {
+			getContext().getLogger().log(Level.WARNING, "Type mapping metrics could not be registered: "+e);
+		} catch (SecurityException e) {
+			getContext().getLogger().log(Level.WARNING, "Type mapping metrics could not be registered: "+e);
+		}
+	}
 
-			Type fsType = ultimateFs.getType();
-			if (path.isArrayIndex(pathIndex)) { // ref would have been set here
-				if (!fsType.isArray()) {
-					throw new InvalidFeaturePath(path, "Unexpected array reference '"+path.toString(pathIndex+1)+"' - corresponding type is "+fsType);
-				}
-				Integer arrayIndex = (Integer) path.get(pathIndex);
-				if (arrayIndex>=((CommonArrayFS) ultimateFs).size()) { 
-					if (cas==null) {
-						throw new InvalidFeaturePath(path, "Index out of bounds in "+path.toString(pathIndex+1));
-					}
-
-					CommonArrayFS sourceArray = (CommonArrayFS)ultimateFs;
-					CommonArrayFS expandedArray = UimaUtils.createArray(cas, sourceArray.getType(), (Integer)path.get(pathIndex)+1);
-
-					// copy arrays
-					for(int i=0; i<sourceArray.size(); ++i) {
-						UimaUtils.setArrayValue(expandedArray, i, 
-								UimaUtils.getArrayValue(sourceArray,i));
-					}
-					ultimateFs = expandedArray;
-					ref.setValue(ultimateFs);
-				}
-				ref = new ArrayReference((CommonArrayFS) ultimateFs, (Integer) path.get(pathIndex), (FSFeatureReference) ref);
-			}
-			else {
-				String featName = (String) path.get(pathIndex);
-				Feature feature = fsType.getFeatureByBaseName(featName);
-				if (feature==null) {
-					throw new InvalidFeaturePath(path, "Feature '"+featName+"' is not defined for type "+fsType);
-				}
-				ref = new FSFeatureReference(ultimateFs, feature);
+	/**
+	 * Returns the active mapping with its plan for the given type system, 
+	 * looking the plan up only when the type system differs from the one of 
+	 * the previous CAS.
+	 */
+	private ActiveMapping getActive(TypeSystem ts) throws AnalysisEngineProcessException {
+		ActiveMapping current = active.get();
+		if (current.typeSystem!=ts) {
+			ActiveMapping previous = current;
+			try {
+				current = new ActiveMapping(previous.mapping, ts, compile(previous.mapping, ts), previous.metrics);
+			} catch (TypeMapperException e) {
+				throw new AnalysisEngineProcessException(e);
 			}
+			// Fails if the mapping has just been reloaded, in which case this 
+			// CAS is still mapped with the previous one
+			active.compareAndSet(previous, current);
+		}
+		return current;
+	}
 
+	private MappingPlan compile(CachedMapping mapping, TypeSystem ts) throws TypeMapperException {
+		return mapping.getPlan(ts, ignoreMissingSourceType, ignoreMissingTargetType, dispatchMode, indexingMode);
+	}
 
+	/**
+	 * A mapping with its plan for a type system, and its metrics.
+	 */
+	private static class ActiveMapping {
+		private final CachedMapping mapping;
+		private final TypeSystem typeSystem;
+		private final MappingPlan plan;
+		private final MappingMetrics metrics;
+
+		ActiveMapping(CachedMapping mapping, TypeSystem typeSystem, MappingPlan plan, MappingMetrics metrics) {
+			this.mapping = mapping;
+			this.typeSystem = typeSystem;
+			this.plan = plan;
+			this.metrics = metrics;
 		}
-		return ref;
 	}
 
+
+	public enum DispatchMode {
+		/**
+		 * Each mapping iterates over the index of its source type in turn.
+		 */
+		SEQUENTIAL,
+		/**
+		 * Consecutive mappings that do not read each other's targets share a 
+		 * single iteration per source type.
+		 */
+		GROUPED,
+		/**
+		 * As GROUPED, but mappings on different source types share a single 
+		 * iteration over their common supertype, each feature structure 
+		 * being dispatched to the mappings applying to its type.
+		 */
+		SUPERTYPE
+	}
+
+	public enum IndexingMode {
+		/**
+		 * Each target is added to the indexes as soon as it is created, 
+		 * while its source index is being iterated.
+		 */
+		IMMEDIATE,
+		/**
+		 * Targets are buffered and added to the indexes in a batch after 
+		 * each scan over a source index.
+		 */
+		PER_SCAN,
+		/**
+		 * Targets are buffered and added to the indexes in a batch at the 
+		 * end of the CAS, or earlier if a later mapping reads them.
+		 */
+		PER_CAS
+	}
 	
-	public class TypeMapperException extends Exception {
+	public static class TypeMapperException extends Exception {
 		private static final long serialVersionUID = 8851034959805175877L;
 		private int mapNumber;
 
-		public TypeMapperException() {
-			mapNumber = currentMapIdx+1;
+		public TypeMapperException(int mapNumber) {
+			this.mapNumber = mapNumber;
 		}
 
-		public TypeMapperException(String message) {
+		public TypeMapperException(int mapNumber, String message) {
 			super(message);
-			mapNumber = currentMapIdx+1;
+			this.mapNumber = mapNumber;
 		}
 
 
@@ -327,16 +546,31 @@ public class NactemTypeMapper extends JCasAnnotator_ImplBase {
 		}
 	}
 
-	public class InvalidFeaturePath extends TypeMapperException {
+	public static class UndefinedType extends TypeMapperException {
+		private static final long serialVersionUID = -2364710372591406313L;
+		private String typeName;
+
+		public UndefinedType(int mapNumber, String role, String typeName) {
+			super(mapNumber, role+" type '"+typeName+"' not defined in the current type system.");
+			this.typeName = typeName;
+		}
+
+		public String getTypeName() {
+			return typeName;
+		}
+	}
+
+	public static class InvalidFeaturePath extends TypeMapperException {
 		private static final long serialVersionUID = -6889267525318574245L;
 		private FeaturePath path;
 		private String extraMessage;
 
-		public InvalidFeaturePath(FeaturePath path) {
-			this(path, null);
+		public InvalidFeaturePath(int mapNumber, FeaturePath path) {
+			this(mapNumber, path, null);
 		}
 
-		public InvalidFeaturePath(FeaturePath path, String extraMessage) {
+		public InvalidFeaturePath(int mapNumber, FeaturePath path, String extraMessage) {
+			super(mapNumber);
 			this.path = path;
 			this.extraMessage = extraMessage;
 		}
@@ -352,11 +586,12 @@ public class NactemTypeMapper extends JCasAnnotator_ImplBase {
 		}
 	}
 
-	public class IncompatibleTypeComparison extends TypeMapperException {
+	public static class IncompatibleTypeComparison extends TypeMapperException {
 		private static final long serialVersionUID = -6581276455052640380L;
 		private Condition condition;
 
-		public IncompatibleTypeComparison(Condition condition) {
+		public IncompatibleTypeComparison(int mapNumber, Condition condition) {
+			super(mapNumber);
 			this.condition = condition;
 		}
 
@@ -370,6 +605,27 @@ public class NactemTypeMapper extends JCasAnnotator_ImplBase {
 		}
 	}
 	
+	public static class InvalidPattern extends TypeMapperException {
+		private static final long serialVersionUID = 4113069627802437513L;
+		private Condition condition;
+		private String description;
+
+		public InvalidPattern(int mapNumber, Condition condition, String description) {
+			super(mapNumber);
+			this.condition = condition;
+			this.description = description;
+		}
+
+		public Condition getCondition() {
+			return condition;
+		}
+
+		@Override
+		public String getMessage() {
+			return "Invalid pattern in mapping #"+getMapNumber()+" in condition: "+condition+". "+description;
+		}
+	}
+	
 	public static void main(String[] args) {
 		
 	}
@@ -0,0 +1,341 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.FeatureStructure;
+
+import uk.ac.nactem.argo.components.typemapper.ConditionPlan.KeywordCondition;
+import uk.ac.nactem.argo.components.typemapper.ConditionPlan.LiteralMatchCondition;
+import uk.ac.nactem.argo.components.typemapper.ConditionPlan.LongCondition;
+import uk.ac.nactem.argo.components.typemapper.ConditionPlan.LongSetCondition;
+import uk.ac.nactem.argo.components.typemapper.ConditionPlan.StringCondition;
+import uk.ac.nactem.argo.components.typemapper.ConditionPlan.StringSetCondition;
+import uk.ac.nactem.argo.components.typemapper.ConditionPlan.SuffixCondition;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.InvalidFeaturePath;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.ComparisonOperator;
+
+/**
+ * The rules applied to the feature structures of a type during a scan. 
+ * Rules testing the same feature for equality with different values, e.g. 
+ * <code>category = "GENE"</code> and <code>category = "CHEMICAL"</code>, are 
+ * gathered into a {@link ValueDispatch} that reads the feature once and 
+ * looks the matching rules up by value, rather than testing each condition 
+ * in turn. Membership conditions, e.g. <code>category in {"GENE", "DNA"}</code>, 
+ * join the family of the equality conditions on the same feature. Rules 
+ * matching the same string feature with literal prefixes, suffixes or 
+ * keywords are likewise gathered into a {@link KeywordTrie}, which scans the 
+ * string once for all of them.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class RuleGroup {
+	private static final RulePlan[] NO_RULES = new RulePlan[0];
+	static final RuleGroup EMPTY = new RuleGroup(-1, NO_RULES, NO_RULES, new ValueDispatch[0]);
+
+	// Position of the group among the groups of its scan
+	private final int index;
+	private final RulePlan[] allRules;
+	// Rules whose conditions are tested one by one
+	private final RulePlan[] rules;
+	private final ValueDispatch[] valueDispatches;
+
+	private RuleGroup(int index, RulePlan[] allRules, RulePlan[] rules, ValueDispatch[] valueDispatches) {
+		this.index = index;
+		this.allRules = allRules;
+		this.rules = rules;
+		this.valueDispatches = valueDispatches;
+	}
+
+	static RuleGroup of(RulePlan[] rules, int index) {
+		// Families of equality conditions by feature path and value type
+		Map<List<Object>, List<RulePlan>> families = new LinkedHashMap<List<Object>, List<RulePlan>>();
+		for(RulePlan rule : rules) {
+			ConditionPlan condition = rule.getCondition();
+			Class<?> kind = dispatchKind(condition);
+			if (kind!=null) {
+				List<Object> key = Arrays.<Object>asList(condition.getPath().getFeaturePath(), kind);
+				List<RulePlan> family = families.get(key);
+				if (family==null) {
+					family = new ArrayList<RulePlan>();
+					families.put(key, family);
+				}
+				family.add(rule);
+			}
+		}
+
+		List<ValueDispatch> valueDispatches = new ArrayList<ValueDispatch>();
+		List<RulePlan> dispatchedRules = new ArrayList<RulePlan>();
+		for(List<RulePlan> family : families.values()) {
+			if (family.size()<2) continue;
+			Class<?> kind = dispatchKind(family.get(0).getCondition());
+			if (kind==String.class) {
+				valueDispatches.add(new StringDispatch(family));
+			}
+			else if (kind==Long.class) {
+				valueDispatches.add(new LongDispatch(family));
+			}
+			else if (kind==KeywordCondition.class) {
+				valueDispatches.add(new KeywordDispatch(family));
+			}
+			else {
+				valueDispatches.add(new AffixDispatch(family, kind==SuffixCondition.class));
+			}
+			dispatchedRules.addAll(family);
+		}
+
+		List<RulePlan> testedRules = new ArrayList<RulePlan>();
+		for(RulePlan rule : rules) {
+			if (!dispatchedRules.contains(rule)) {
+				testedRules.add(rule);
+			}
+		}
+		return new RuleGroup(index, rules, testedRules.toArray(new RulePlan[testedRules.size()]), 
+				valueDispatches.toArray(new ValueDispatch[valueDispatches.size()]));
+	}
+
+	/**
+	 * Returns the type of the values a condition can be dispatched on, or the 
+	 * class of literal string matches, or null if it has to be tested.
+	 */
+	private static Class<?> dispatchKind(ConditionPlan condition) {
+		if (condition==null) return null;
+		if (condition instanceof LiteralMatchCondition) {
+			return ((LiteralMatchCondition) condition).isStatic()? condition.getClass() : null;
+		}
+		if (condition.getOperator()==ComparisonOperator.EQUAL) {
+			if (condition instanceof StringCondition) return String.class;
+			if (condition instanceof LongCondition) return Long.class;
+		}
+		else if (condition.getOperator()==ComparisonOperator.IN) {
+			if (condition instanceof StringSetCondition) return String.class;
+			if (condition instanceof LongSetCondition) return Long.class;
+		}
+		return null;
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	/**
+	 * All rules of the group, in mapping order.
+	 */
+	RulePlan[] getRules() {
+		return allRules;
+	}
+
+	/**
+	 * Rules whose conditions have to be tested for each feature structure.
+	 */
+	RulePlan[] getTestedRules() {
+		return rules;
+	}
+
+	ValueDispatch[] getValueDispatches() {
+		return valueDispatches;
+	}
+
+	/**
+	 * A family of rules conditioned on the value of the same feature path, 
+	 * whose matching rules are looked up from the value.
+	 */
+	static abstract class ValueDispatch {
+		protected final CompiledPath path;
+		private final RulePlan[] family;
+
+		ValueDispatch(List<RulePlan> family) {
+			this.path = family.get(0).getCondition().getPath();
+			this.family = family.toArray(new RulePlan[family.size()]);
+		}
+
+		RulePlan[] getRules() {
+			return family;
+		}
+
+		/**
+		 * Returns the rules of the family at the given positions.
+		 */
+		RulePlan[] rules(int[] positions) {
+			if (positions.length==0) return NO_RULES;
+			RulePlan[] rules = new RulePlan[positions.length];
+			for(int i=0; i<positions.length; ++i) {
+				rules[i] = family[positions[i]];
+			}
+			return rules;
+		}
+
+		/**
+		 * Returns the rules whose condition is satisfied by the given 
+		 * feature structure, in mapping order.
+		 */
+		abstract RulePlan[] matchingRules(FeatureStructure fs) throws InvalidFeaturePath;
+	}
+
+	static class StringDispatch extends ValueDispatch {
+		private final Map<String, RulePlan[]> rulesByValue = new HashMap<String, RulePlan[]>();
+
+		StringDispatch(List<RulePlan> family) {
+			super(family);
+			Map<String, List<RulePlan>> rules = new HashMap<String, List<RulePlan>>();
+			for(RulePlan rule : family) {
+				ConditionPlan condition = rule.getCondition();
+				Collection<String> values = condition instanceof StringSetCondition? 
+						((StringSetCondition) condition).getValues() : 
+						Collections.singleton(((StringCondition) condition).getValue());
+				for(String value : values) {
+					List<RulePlan> valueRules = rules.get(value);
+					if (valueRules==null) {
+						valueRules = new ArrayList<RulePlan>();
+						rules.put(value, valueRules);
+					}
+					valueRules.add(rule);
+				}
+			}
+			for(Map.Entry<String, List<RulePlan>> entry : rules.entrySet()) {
+				rulesByValue.put(entry.getKey(), 
+						entry.getValue().toArray(new RulePlan[entry.getValue().size()]));
+			}
+		}
+
+		@Override
+		RulePlan[] matchingRules(FeatureStructure fs) throws InvalidFeaturePath {
+			String value = path.readString(fs);
+			RulePlan[] rules = value!=null? rulesByValue.get(value) : null;
+			return rules!=null? rules : NO_RULES;
+		}
+	}
+
+	/**
+	 * Dispatch on integral values, looked up by binary search in sorted keys 
+	 * so that the value is not boxed.
+	 */
+	static class LongDispatch extends ValueDispatch {
+		private final long[] values;
+		private final RulePlan[][] rulesByValue;
+
+		LongDispatch(List<RulePlan> family) {
+			super(family);
+			Map<Long, List<RulePlan>> rules = new HashMap<Long, List<RulePlan>>();
+			for(RulePlan rule : family) {
+				ConditionPlan condition = rule.getCondition();
+				long[] values = condition instanceof LongSetCondition? 
+						((LongSetCondition) condition).getValues() : 
+						new long[] { ((LongCondition) condition).getValue() };
+				for(long value : values) {
+					List<RulePlan> valueRules = rules.get(value);
+					if (valueRules==null) {
+						valueRules = new ArrayList<RulePlan>();
+						rules.put(value, valueRules);
+					}
+					// A set may list a value twice
+					if (valueRules.isEmpty() || valueRules.get(valueRules.size()-1)!=rule) {
+						valueRules.add(rule);
+					}
+				}
+			}
+			values = new long[rules.size()];
+			int i = 0;
+			for(Long value : rules.keySet()) {
+				values[i++] = value;
+			}
+			Arrays.sort(values);
+			rulesByValue = new RulePlan[values.length][];
+			for(i=0; i<values.length; ++i) {
+				List<RulePlan> valueRules = rules.get(values[i]);
+				rulesByValue[i] = valueRules.toArray(new RulePlan[valueRules.size()]);
+			}
+		}
+
+		@Override
+		RulePlan[] matchingRules(FeatureStructure fs) throws InvalidFeaturePath {
+			int index = Arrays.binarySearch(values, path.readLong(fs));
+			return index>=0? rulesByValue[index] : NO_RULES;
+		}
+	}
+
+	/**
+	 * Dispatch on the literal prefixes, or suffixes, of a string, looked up 
+	 * by walking a trie along the string. The rules matching each state of 
+	 * the trie are computed beforehand.
+	 */
+	static class AffixDispatch extends ValueDispatch {
+		private final KeywordTrie trie;
+		private final boolean suffixes;
+		private final RulePlan[][] rulesByState;
+
+		AffixDispatch(List<RulePlan> family, boolean suffixes) {
+			super(family);
+			this.suffixes = suffixes;
+			List<String> affixes = new ArrayList<String>(family.size());
+			for(RulePlan rule : family) {
+				String affix = ((LiteralMatchCondition) rule.getCondition()).getLiteral();
+				affixes.add(suffixes? new StringBuilder(affix).reverse().toString() : affix);
+			}
+			trie = new KeywordTrie(affixes);
+			rulesByState = new RulePlan[trie.getStateCount()][];
+			for(int state=0; state<rulesByState.length; ++state) {
+				rulesByState[state] = rules(trie.getPrefixKeywords(state));
+			}
+		}
+
+		@Override
+		RulePlan[] matchingRules(FeatureStructure fs) throws InvalidFeaturePath {
+			String value = path.readString(fs);
+			return value!=null? rulesByState[trie.walk(value, suffixes)] : NO_RULES;
+		}
+	}
+
+	/**
+	 * Dispatch on the literal keywords a string contains, found in a single 
+	 * pass by an Aho-Corasick automaton.
+	 */
+	static class KeywordDispatch extends ValueDispatch {
+		private final KeywordTrie trie;
+
+		KeywordDispatch(List<RulePlan> family) {
+			super(family);
+			List<String> keywords = new ArrayList<String>(family.size());
+			for(RulePlan rule : family) {
+				keywords.add(((LiteralMatchCondition) rule.getCondition()).getLiteral());
+			}
+			trie = new KeywordTrie(keywords);
+		}
+
+		@Override
+		RulePlan[] matchingRules(FeatureStructure fs) throws InvalidFeaturePath {
+			String value = path.readString(fs);
+			boolean[] found = value!=null? trie.find(value) : null;
+			if (found==null) return NO_RULES;
+			RulePlan[] family = getRules();
+			List<RulePlan> rules = new ArrayList<RulePlan>();
+			for(int i=0; i<found.length; ++i) {
+				if (found[i]) rules.add(family[i]);
+			}
+			return rules.toArray(new RulePlan[rules.size()]);
+		}
+	}
+}
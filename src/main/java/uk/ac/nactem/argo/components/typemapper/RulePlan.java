@@ -0,0 +1,264 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+
+import uk.ac.nactem.argo.components.typemapper.FSReference.FSFeatureReference;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IncompatibleTypeComparison;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.InvalidFeaturePath;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.TypeMapperException;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.Condition;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.FeatureMap;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.Function;
+
+/**
+ * A {@link TypeMap} lowered against a type system: source and target types,
+ * the features they have in common and all feature paths are resolved once
+ * and reused for every feature structure the map is applied to.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class RulePlan {
+	private final int mapNumber;
+	private final TypeMap typeMap;
+	private final Type sourceType;
+	private final Type targetType;
+	private final Feature[] commonFeatures;
+	private final FeatureRange[] commonRanges;
+	private final ConditionPlan condition;
+	// Source paths are null for feature maps assigning a value directly or 
+	// the value of a function.
+	private final CompiledPath[] sourcePaths;
+	private final Function[] sourceFunctions;
+	// The source paths merged on their prefixes
+	private final SourceTrie sourceTrie;
+	private final CompiledPath[] targetPaths;
+	private final Object[] assignedValues;
+	// The target paths merged on their prefixes, or null if the feature maps 
+	// are applied one by one
+	private final TargetTrie targetTrie;
+	private final TargetIndex.Layout targetLayout;
+	// Types of the annotations the condition relates the source to
+	private final Type[] relatedTypes;
+
+	RulePlan(int mapNumber, TypeMap typeMap, TypeSystem ts, Type sourceType, Type targetType) 
+			throws TypeMapperException {
+		this.mapNumber = mapNumber;
+		this.typeMap = typeMap;
+		this.sourceType = sourceType;
+		this.targetType = targetType;
+		this.commonFeatures = commonFeatures(sourceType, targetType);
+		this.commonRanges = new FeatureRange[commonFeatures.length];
+		for(int i=0; i<commonFeatures.length; ++i) {
+			commonRanges[i] = FeatureRange.of(commonFeatures[i]);
+		}
+
+		Condition condition = typeMap.getCondition();
+		this.condition = condition!=null? 
+				ConditionPlan.compile(mapNumber, condition, sourceType, ts) : null;
+		List<Type> relatedTypes = new ArrayList<Type>();
+		if (this.condition!=null) {
+			this.condition.addRelatedTypes(relatedTypes);
+		}
+		this.relatedTypes = relatedTypes.toArray(new Type[relatedTypes.size()]);
+
+		List<FeatureMap> featureMaps = typeMap.getFeatureMaps();
+		this.sourcePaths = new CompiledPath[featureMaps.size()];
+		this.targetPaths = new CompiledPath[featureMaps.size()];
+		this.sourceFunctions = new Function[featureMaps.size()];
+		this.assignedValues = new Object[featureMaps.size()];
+		for(int i=0; i<featureMaps.size(); ++i) {
+			FeatureMap featMap = featureMaps.get(i);
+			if (featMap.assignsValueDirectly()) {
+				assignedValues[i] = featMap.getAssigneableValue();
+			}
+			else if (featMap.getSourceFunction()!=null) {
+				if (!CoveredText.isAnnotationType(sourceType)) {
+					throw new TypeMapperException(mapNumber, "Source type '"+sourceType.getName()
+							+"' of mapping #"+mapNumber+" is not an annotation type: "+featMap);
+				}
+				sourceFunctions[i] = featMap.getSourceFunction();
+			}
+			else {
+				sourcePaths[i] = CompiledPath.compile(mapNumber, featMap.getSourceFeaturePath(), sourceType);
+			}
+			targetPaths[i] = CompiledPath.compile(mapNumber, featMap.getTargetFeaturePath(), targetType);
+			// Decimal literals are parsed as doubles
+			if (assignedValues[i] instanceof Double && targetPaths[i].getLeafRange()==FeatureRange.FLOAT) {
+				assignedValues[i] = Float.valueOf(((Double) assignedValues[i]).floatValue());
+			}
+		}
+		this.sourceTrie = new SourceTrie(sourcePaths);
+		CompiledPath.presizeArrays(targetPaths);
+		this.targetTrie = TargetTrie.build(targetPaths);
+		this.targetLayout = new TargetIndex.Layout(targetType, commonFeatures, targetPaths);
+	}
+
+	int getMapNumber() {
+		return mapNumber;
+	}
+
+	TypeMap getTypeMap() {
+		return typeMap;
+	}
+
+	Type getSourceType() {
+		return sourceType;
+	}
+
+	Type getTargetType() {
+		return targetType;
+	}
+
+	ConditionPlan getCondition() {
+		return condition;
+	}
+
+	Type[] getRelatedTypes() {
+		return relatedTypes;
+	}
+
+	boolean conditionSatisfied(FeatureStructure fs)
+			throws IncompatibleTypeComparison, InvalidFeaturePath {
+		return conditionSatisfied(fs, null);
+	}
+
+	/**
+	 * Tests the condition, looking up span relations in the given span 
+	 * indexes of the CAS, or in indexes built for this test only if null.
+	 */
+	boolean conditionSatisfied(FeatureStructure fs, SpanIndex.Cache spans)
+			throws IncompatibleTypeComparison, InvalidFeaturePath {
+		return condition==null || condition.test(fs, spans);
+	}
+
+	TargetIndex.Layout getTargetLayout() {
+		return targetLayout;
+	}
+
+	/**
+	 * Returns the value the given feature map assigns to the target of the 
+	 * given source.
+	 */
+	Object mappedValue(int featureMap, FeatureStructure sourceFs) throws InvalidFeaturePath {
+		if (sourceFunctions[featureMap]!=null) {
+			return CoveredText.get(sourceFs);
+		}
+		if (sourcePaths[featureMap]==null) {
+			return assignedValues[featureMap];
+		}
+		return sourcePaths[featureMap].extract(sourceFs).getValue();
+	}
+
+	/**
+	 * The number of slots the source paths of the feature maps are read 
+	 * into; see {@link #createTarget}.
+	 */
+	int getSourceSlotCount() {
+		return sourceTrie.size();
+	}
+
+	/**
+	 * Creates the target feature structure for the given source, copying 
+	 * common features and applying the feature maps. The target is not 
+	 * added to the indexes.
+	 * 
+	 * @param sourceSlots scratch array reused across targets, holding at 
+	 * least {@link #getSourceSlotCount()} feature structures
+	 */
+	FeatureStructure createTarget(FeatureStructure sourceFs, CAS cas, FeatureStructure[] sourceSlots) 
+			throws InvalidFeaturePath {
+		FeatureStructure targetFs = cas.createFS(targetType);
+
+		// copy common features
+		copyFeatures(sourceFs, targetFs);
+
+		sourceSlots = sourceTrie.read(sourceFs, sourceSlots);
+		if (targetTrie!=null) {
+			targetTrie.write(this, sourceFs, sourceSlots, targetFs, cas);
+		}
+		else {
+			for(int i=0; i<targetPaths.length; ++i) {
+				write(i, sourceFs, sourceSlots, targetPaths[i].extract(targetFs, cas));
+			}
+		}
+		return targetFs;
+	}
+
+	/**
+	 * Writes the value the given feature map assigns to the target of the 
+	 * given source into the given reference to its target path, reading 
+	 * source paths from the given slots of the source trie.
+	 */
+	void write(int featureMap, FeatureStructure sourceFs, FeatureStructure[] sourceSlots, 
+			FSReference targetFsRef) throws InvalidFeaturePath {
+		if (sourceFunctions[featureMap]!=null) {
+			targetFsRef.setValue(CoveredText.get(sourceFs));
+			return;
+		}
+		if (sourcePaths[featureMap]==null) {
+			targetFsRef.setValue(assignedValues[featureMap]);
+			return;
+		}
+		FeatureStructure holder = sourceTrie.holder(featureMap, sourceFs, sourceSlots);
+		if (holder!=null && sourcePaths[featureMap].copyLast(holder, targetFsRef)) {
+			return;
+		}
+		// Walk the path again, which reports why it cannot be read
+		FSReference fsRef = sourcePaths[featureMap].extract(sourceFs);
+		if (fsRef instanceof FSFeatureReference && targetFsRef instanceof FSFeatureReference) {
+			((FSFeatureReference) targetFsRef).copyValueFrom((FSFeatureReference) fsRef);
+		}
+		else {
+			targetFsRef.setValue(fsRef.getValue());
+		}
+	}
+
+	private void copyFeatures(FeatureStructure sourceFs, FeatureStructure targetFs) {
+		for(int i=0; i<commonFeatures.length; ++i) {
+			Feature feat = commonFeatures[i];
+			commonRanges[i].copy(sourceFs, feat, targetFs, feat);
+		}
+	}
+
+	private static Feature[] commonFeatures(Type type1, Type type2) {
+		Set<Feature> type2Features = new HashSet<Feature>(type2.getFeatures());
+		List<Feature> commonFeatures = new ArrayList<Feature>();
+		for(Feature feat : type1.getFeatures()) {
+			if (type2Features.contains(feat)) {
+				commonFeatures.add(feat);
+			}
+		}
+		return commonFeatures.toArray(new Feature[commonFeatures.size()]);
+	}
+
+	@Override
+	public String toString() {
+		return "#"+mapNumber+" "+typeMap;
+	}
+}
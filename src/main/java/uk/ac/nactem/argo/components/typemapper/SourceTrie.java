@@ -0,0 +1,127 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.FeatureStructure;
+
+/**
+ * The source paths of the feature maps of a rule merged on their common 
+ * prefixes, so that each distinct prefix is dereferenced once per source 
+ * rather than once per path going through it. A rule reading norm/id, 
+ * norm/db and norm/score follows norm once.
+ * <p>
+ * The prefixes are numbered so that each comes after its own prefix, and 
+ * are read in that order into an array of slots, one per prefix, holding 
+ * the feature structure it leads to. Each feature map then reads the last 
+ * segment of its path from the slot of the rest of it, or from the source 
+ * itself for single segment paths. A slot is null if the prefix cannot be 
+ * followed, in which case the feature map walks its path again to report 
+ * why.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class SourceTrie {
+	private static final int SOURCE = -1;
+
+	// Per prefix: the prefix it extends by one segment, or SOURCE, and a 
+	// path it is a prefix of, with the position of that segment in it
+	private final int[] parents;
+	private final CompiledPath[] paths;
+	private final int[] segments;
+	// Per feature map: the prefix holding the last segment of its path, or 
+	// SOURCE, also for feature maps without a source path
+	private final int[] holders;
+
+	/**
+	 * Merges the given source paths, indexed by feature map and null for 
+	 * feature maps not reading one.
+	 */
+	SourceTrie(CompiledPath[] sourcePaths) {
+		List<Integer> parents = new ArrayList<Integer>();
+		List<CompiledPath> paths = new ArrayList<CompiledPath>();
+		List<Integer> segments = new ArrayList<Integer>();
+		Map<String, Integer> prefixes = new HashMap<String, Integer>();
+		this.holders = new int[sourcePaths.length];
+		Arrays.fill(holders, SOURCE);
+		for(int i=0; i<sourcePaths.length; ++i) {
+			CompiledPath path = sourcePaths[i];
+			if (path==null) continue;
+			int prefix = SOURCE;
+			for(int segment=0; segment<path.size()-1; ++segment) {
+				String prefixString = path.getFeaturePath().toString(segment+1);
+				Integer extended = prefixes.get(prefixString);
+				if (extended==null) {
+					extended = parents.size();
+					parents.add(prefix);
+					paths.add(path);
+					segments.add(segment);
+					prefixes.put(prefixString, extended);
+				}
+				prefix = extended;
+			}
+			holders[i] = prefix;
+		}
+		this.parents = new int[parents.size()];
+		this.segments = new int[parents.size()];
+		for(int i=0; i<this.parents.length; ++i) {
+			this.parents[i] = parents.get(i);
+			this.segments[i] = segments.get(i);
+		}
+		this.paths = paths.toArray(new CompiledPath[paths.size()]);
+	}
+
+	/**
+	 * The number of slots needed to read the prefixes.
+	 */
+	int size() {
+		return parents.length;
+	}
+
+	/**
+	 * Reads every prefix from the given source into the given slots, of 
+	 * which there must be at least {@link #size()}. Slots past the prefixes 
+	 * are left as they are.
+	 * 
+	 * @return the slots, or null if no path has more than one segment
+	 */
+	FeatureStructure[] read(FeatureStructure sourceFs, FeatureStructure[] slots) {
+		if (parents.length==0) {
+			return null;
+		}
+		for(int i=0; i<parents.length; ++i) {
+			FeatureStructure holder = parents[i]==SOURCE? sourceFs : slots[parents[i]];
+			slots[i] = holder!=null? paths[i].valueAt(holder, segments[i]) : null;
+		}
+		return slots;
+	}
+
+	/**
+	 * Returns the feature structure holding the last segment of the source 
+	 * path of the given feature map, or null if it cannot be reached.
+	 */
+	FeatureStructure holder(int featureMap, FeatureStructure sourceFs, FeatureStructure[] slots) {
+		int holder = holders[featureMap];
+		return holder==SOURCE? sourceFs : slots[holder];
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.cas.text.AnnotationIndex;
+
+import uk.ac.nactem.argo.components.typemapper.TypeMap.SpanRelation;
+
+/**
+ * The spans of the annotations of a type in a CAS, built in a single pass 
+ * over its annotation index, which answers whether any of them is in a 
+ * {@link SpanRelation} with a given span by a binary search.
+ * <p>
+ * Annotations are sorted by begin offset. For every prefix of them the 
+ * index keeps the largest end offset, and for every suffix the smallest, 
+ * so that an annotation covering a span is one of those beginning at or 
+ * before it with the largest end, and an annotation contained in a span 
+ * one of those beginning at or after it with the smallest end. An 
+ * annotation is not related to itself: the second largest and smallest 
+ * ends are kept as well, in case the extreme is the annotation tested.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class SpanIndex {
+	private final FeatureStructure[] annotations;
+	private final int[] begins;
+	// Per prefix: the largest end, the position of the annotation with that 
+	// end, and the largest end of the other annotations
+	private final int[] maxEnds;
+	private final int[] maxEndPositions;
+	private final int[] secondMaxEnds;
+	// Per suffix: the smallest end, the position of the annotation with 
+	// that end, and the smallest end of the other annotations
+	private final int[] minEnds;
+	private final int[] minEndPositions;
+	private final int[] secondMinEnds;
+
+	SpanIndex(CAS cas, Type type) {
+		AnnotationIndex<AnnotationFS> index = cas.getAnnotationIndex(type);
+		int size = index.size();
+		annotations = new FeatureStructure[size];
+		begins = new int[size];
+		int[] ends = new int[size];
+		FSIterator<AnnotationFS> iter = index.iterator();
+		for(int i=0; i<size; ++i) {
+			AnnotationFS annotation = iter.next();
+			annotations[i] = annotation;
+			begins[i] = annotation.getBegin();
+			ends[i] = annotation.getEnd();
+		}
+
+		maxEnds = new int[size];
+		maxEndPositions = new int[size];
+		secondMaxEnds = new int[size];
+		int max = Integer.MIN_VALUE, maxPosition = -1, secondMax = Integer.MIN_VALUE;
+		for(int i=0; i<size; ++i) {
+			if (ends[i]>max) {
+				secondMax = max;
+				max = ends[i];
+				maxPosition = i;
+			}
+			else if (ends[i]>secondMax) {
+				secondMax = ends[i];
+			}
+			maxEnds[i] = max;
+			maxEndPositions[i] = maxPosition;
+			secondMaxEnds[i] = secondMax;
+		}
+
+		minEnds = new int[size];
+		minEndPositions = new int[size];
+		secondMinEnds = new int[size];
+		int min = Integer.MAX_VALUE, minPosition = -1, secondMin = Integer.MAX_VALUE;
+		for(int i=size-1; i>=0; --i) {
+			if (ends[i]<min) {
+				secondMin = min;
+				min = ends[i];
+				minPosition = i;
+			}
+			else if (ends[i]<secondMin) {
+				secondMin = ends[i];
+			}
+			minEnds[i] = min;
+			minEndPositions[i] = minPosition;
+			secondMinEnds[i] = secondMin;
+		}
+	}
+
+	/**
+	 * Tells whether an annotation of the index other than the given one is 
+	 * in the given relation with it.
+	 */
+	boolean related(SpanRelation relation, AnnotationFS annotation) {
+		int begin = annotation.getBegin();
+		int end = annotation.getEnd();
+		switch(relation) {
+		case COVERED_BY: {
+			// Among those beginning at or before, one ending at or after
+			int last = firstBeginAfter(begin)-1;
+			return last>=0 && maxEnd(last, annotation)>=end;
+		}
+		case CONTAINS: {
+			// Among those beginning at or after, one ending at or before; 
+			// those beginning after the end also end after it
+			int first = firstBeginAfter(begin-1);
+			return first<begins.length && minEnd(first, annotation)<=end;
+		}
+		default: {
+			// Among those beginning before the end, one ending after the begin
+			int last = firstBeginAfter(end-1)-1;
+			return last>=0 && maxEnd(last, annotation)>begin;
+		}
+		}
+	}
+
+	/**
+	 * The position of the first annotation beginning after the given offset.
+	 */
+	private int firstBeginAfter(int offset) {
+		int low = 0, high = begins.length;
+		while(low<high) {
+			int middle = (low+high)>>>1;
+			if (begins[middle]<=offset) {
+				low = middle+1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private int maxEnd(int last, FeatureStructure excluded) {
+		return annotations[maxEndPositions[last]].equals(excluded)? secondMaxEnds[last] : maxEnds[last];
+	}
+
+	private int minEnd(int first, FeatureStructure excluded) {
+		return annotations[minEndPositions[first]].equals(excluded)? secondMinEnds[first] : minEnds[first];
+	}
+
+	/**
+	 * The span indexes of a CAS, built when first needed and dropped when 
+	 * annotations are added to the indexes, together with its document text, 
+	 * read once for the conditions on covered text. Indexes are only built by 
+	 * the thread applying the plan, before evaluating a scan; reading them 
+	 * from the threads evaluating a scan in parallel is then safe.
+	 */
+	static class Cache {
+		private final CAS cas;
+		private final String documentText;
+		private final Map<Type, SpanIndex> indexes = new IdentityHashMap<Type, SpanIndex>();
+
+		Cache(CAS cas) {
+			this.cas = cas;
+			this.documentText = cas.getDocumentText();
+		}
+
+		String getDocumentText() {
+			return documentText;
+		}
+
+		SpanIndex get(Type type) {
+			SpanIndex index = indexes.get(type);
+			if (index==null) {
+				index = new SpanIndex(cas, type);
+				indexes.put(type, index);
+			}
+			return index;
+		}
+
+		void prepare(Type[] types) {
+			for(Type type : types) {
+				get(type);
+			}
+		}
+
+		void invalidate() {
+			indexes.clear();
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.InvalidFeaturePath;
+
+/**
+ * Hash index of the targets of a CAS, so that a rule does not create a 
+ * target identical to one already in the CAS, or already created while 
+ * mapping it. Targets are compared by type and by the values of their 
+ * features: values are computed from the source before the target is 
+ * created, so a skipped target costs a hash probe and no allocation in the 
+ * CAS.
+ * <p>
+ * The targets of a type are indexed the first time a rule creating that 
+ * type is matched; rules whose targets have the same layout share an index.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class TargetIndex {
+	private final CAS cas;
+	private final Map<Layout, Set<Key>> keysByLayout = new HashMap<Layout, Set<Key>>();
+
+	TargetIndex(CAS cas) {
+		this.cas = cas;
+	}
+
+	/**
+	 * Records the target the rule would create from the given source, 
+	 * returning false if an identical target exists.
+	 */
+	boolean add(RulePlan rule, FeatureStructure sourceFs) throws InvalidFeaturePath {
+		Layout layout = rule.getTargetLayout();
+		Set<Key> keys = keysByLayout.get(layout);
+		if (keys==null) {
+			keys = layout.existingKeys(cas);
+			keysByLayout.put(layout, keys);
+		}
+		return keys.add(layout.sourceKey(rule, sourceFs));
+	}
+
+	/**
+	 * The values identifying a target: those of the features of its type, 
+	 * except its sofa and features holding intermediate feature structures 
+	 * created for the feature maps, followed by those at the ends of such 
+	 * feature maps.
+	 */
+	static class Layout {
+		// Value sources of the top-level features
+		private static final int COPIED = -1;
+		private static final int DEFAULT = -2;
+		private static final String SOFA_FEATURE = 
+				CAS.TYPE_NAME_ANNOTATION_BASE+TypeSystem.FEATURE_SEPARATOR+CAS.FEATURE_BASE_NAME_SOFA;
+
+		private final Type targetType;
+		private final Feature[] features;
+		private final FeatureRange[] ranges;
+		// Feature map or COPIED or DEFAULT, per feature
+		private final int[] featureSources;
+		// Feature maps through intermediate feature structures
+		private final CompiledPath[] paths;
+		private final int[] pathSources;
+		// What layouts are compared on
+		private final List<Object> signature;
+
+		Layout(Type targetType, Feature[] commonFeatures, CompiledPath[] targetPaths) {
+			this.targetType = targetType;
+			// The last feature map to a path determines its value
+			Map<String, Integer> singleFeatureMaps = new HashMap<String, Integer>();
+			Map<String, Integer> pathMaps = new LinkedHashMap<String, Integer>();
+			Set<String> intermediateFeatures = new HashSet<String>();
+			for(int i=0; i<targetPaths.length; ++i) {
+				CompiledPath path = targetPaths[i];
+				String firstFeature = (String) path.getFeaturePath().get(0);
+				// Values written below this path are overwritten
+				Iterator<Integer> pathMapIter = pathMaps.values().iterator();
+				while(pathMapIter.hasNext()) {
+					if (isBelow(targetPaths[pathMapIter.next()].getFeaturePath(), path.getFeaturePath())) {
+						pathMapIter.remove();
+					}
+				}
+				if (path.getFeaturePath().size()==1) {
+					singleFeatureMaps.put(firstFeature, i);
+					intermediateFeatures.remove(firstFeature);
+				}
+				else {
+					pathMaps.remove(path.getFeaturePath().toString());
+					pathMaps.put(path.getFeaturePath().toString(), i);
+					intermediateFeatures.add(firstFeature);
+				}
+			}
+			Set<Feature> copied = new HashSet<Feature>(Arrays.asList(commonFeatures));
+
+			List<Feature> features = new ArrayList<Feature>();
+			List<Integer> featureSources = new ArrayList<Integer>();
+			for(Feature feature : targetType.getFeatures()) {
+				// Set by the CAS to the sofa of the view, the same for every 
+				// target of a view
+				if (feature.getName().equals(SOFA_FEATURE)) continue;
+				String name = feature.getShortName();
+				if (intermediateFeatures.contains(name)) continue;
+				features.add(feature);
+				Integer featureMap = singleFeatureMaps.get(name);
+				featureSources.add(featureMap!=null? featureMap : copied.contains(feature)? COPIED : DEFAULT);
+			}
+			this.features = features.toArray(new Feature[features.size()]);
+			this.ranges = new FeatureRange[this.features.length];
+			this.featureSources = new int[this.features.length];
+			for(int i=0; i<this.features.length; ++i) {
+				ranges[i] = FeatureRange.of(this.features[i]);
+				this.featureSources[i] = featureSources.get(i);
+			}
+			List<String> pathNames = new ArrayList<String>(pathMaps.keySet());
+			Collections.sort(pathNames);
+			this.paths = new CompiledPath[pathNames.size()];
+			this.pathSources = new int[pathNames.size()];
+			for(int i=0; i<pathNames.size(); ++i) {
+				pathSources[i] = pathMaps.get(pathNames.get(i));
+				paths[i] = targetPaths[pathSources[i]];
+			}
+			this.signature = Arrays.<Object>asList(targetType.getName(), 
+					new ArrayList<Feature>(features), pathNames);
+		}
+
+		private static boolean isBelow(List<Object> path, List<Object> prefix) {
+			return path.size()>prefix.size() && path.subList(0, prefix.size()).equals(prefix);
+		}
+
+				Key sourceKey(RulePlan rule, FeatureStructure sourceFs) throws InvalidFeaturePath {
+			Object[] values = new Object[features.length+paths.length];
+			for(int i=0; i<features.length; ++i) {
+				int source = featureSources[i];
+				if (source==COPIED) {
+					values[i] = ranges[i].get(sourceFs, features[i]);
+				}
+				else if (source==DEFAULT) {
+					values[i] = defaultValue(ranges[i]);
+				}
+				else {
+					values[i] = rule.mappedValue(source, sourceFs);
+				}
+			}
+			for(int i=0; i<paths.length; ++i) {
+				values[features.length+i] = rule.mappedValue(pathSources[i], sourceFs);
+			}
+			return new Key(values);
+		}
+
+		/**
+		 * Returns the keys of the feature structures of exactly the target 
+		 * type. Those lacking an intermediate feature structure cannot be 
+		 * identical to a target and are left out.
+		 */
+		Set<Key> existingKeys(CAS cas) {
+			Set<Key> keys = new HashSet<Key>();
+			FSIterator<FeatureStructure> fsIter = cas.getIndexRepository().getAllIndexedFS(targetType);
+			targets:
+			while(fsIter.hasNext()) {
+				FeatureStructure fs = fsIter.next();
+				if (fs.getType()!=targetType) continue;
+				Object[] values = new Object[features.length+paths.length];
+				for(int i=0; i<features.length; ++i) {
+					values[i] = ranges[i].get(fs, features[i]);
+				}
+				for(int i=0; i<paths.length; ++i) {
+					try {
+						values[features.length+i] = paths[i].extract(fs).getValue();
+					} catch (InvalidFeaturePath e) {
+						continue targets;
+					}
+				}
+				keys.add(new Key(values));
+			}
+			return keys;
+		}
+
+		private static Object defaultValue(FeatureRange range) {
+			switch(range) {
+			case INTEGER:
+				return Integer.valueOf(0);
+			case FLOAT:
+				return Float.valueOf(0);
+			case BYTE:
+				return Byte.valueOf((byte) 0);
+			case SHORT:
+				return Short.valueOf((short) 0);
+			case LONG:
+				return Long.valueOf(0);
+			case DOUBLE:
+				return Double.valueOf(0);
+			case BOOLEAN:
+				return Boolean.FALSE;
+			default:
+				return null;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return signature.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Layout && ((Layout) obj).signature.equals(signature);
+		}
+	}
+
+	static class Key {
+		private final Object[] values;
+		private final int hash;
+
+		Key(Object[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && ((Key) obj).hash==hash && Arrays.equals(((Key) obj).values, values);
+		}
+	}
+}
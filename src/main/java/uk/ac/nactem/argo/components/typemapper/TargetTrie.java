@@ -0,0 +1,157 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FeatureStructure;
+
+import uk.ac.nactem.argo.components.typemapper.FSReference.ArrayReference;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.InvalidFeaturePath;
+
+/**
+ * The target paths of a rule merged on their common prefixes, so that 
+ * writing the feature maps into a new target walks each intermediate 
+ * feature structure once, creating it if missing, rather than once per 
+ * path going through it.
+ * <p>
+ * Each node stands for a segment shared by one or more paths and lists the 
+ * feature maps whose path ends there, in mapping order. Nodes are visited 
+ * depth first, writing the feature maps ending at a node before visiting 
+ * its children. Since writes to distinct paths are independent, this gives 
+ * the same result as applying the feature maps one by one, unless a map 
+ * writing below a node precedes one assigning the node itself: no trie is 
+ * built for such rules.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+class TargetTrie {
+	private final Node[] roots;
+
+	private TargetTrie(Node[] roots) {
+		this.roots = roots;
+	}
+
+	/**
+	 * Merges the given target paths, indexed by feature map, or returns null 
+	 * if the feature maps have to be applied one by one.
+	 */
+	static TargetTrie build(CompiledPath[] paths) {
+		Node root = new Node(null, -1);
+		for(int i=0; i<paths.length; ++i) {
+			CompiledPath path = paths[i];
+			Node node = root;
+			for(int segment=0; segment<path.size(); ++segment) {
+				if (node.firstBelow<0) {
+					node.firstBelow = i;
+				}
+				node = node.child(path, segment);
+			}
+			node.featureMapList.add(i);
+		}
+		if (!root.freeze()) {
+			return null;
+		}
+		return new TargetTrie(root.children);
+	}
+
+	/**
+	 * Writes the feature maps of the given rule into the target created for 
+	 * the given source.
+	 */
+	void write(RulePlan rule, FeatureStructure sourceFs, FeatureStructure[] sourceSlots, 
+			FeatureStructure targetFs, CAS cas) throws InvalidFeaturePath {
+		for(Node node : roots) {
+			visit(node, rule, sourceFs, sourceSlots, targetFs, null, cas);
+		}
+	}
+
+	/**
+	 * Writes the feature maps ending at the given node and below it.
+	 * 
+	 * @return the feature structure holding the node's segment, which 
+	 * differs from the given one if it is an array that had to be expanded
+	 */
+	private static FeatureStructure visit(Node node, RulePlan rule, FeatureStructure sourceFs, 
+			FeatureStructure[] sourceSlots, FeatureStructure holder, FSReference holderRef, CAS cas) 
+			throws InvalidFeaturePath {
+		FSReference ref = node.path.reference(holder, holderRef, node.segment, cas);
+		for(int featureMap : node.featureMaps) {
+			rule.write(featureMap, sourceFs, sourceSlots, ref);
+		}
+		if (node.children.length>0) {
+			Node first = node.children[0];
+			FeatureStructure childHolder = first.path.follow(ref, first.segment, cas);
+			for(Node child : node.children) {
+				childHolder = visit(child, rule, sourceFs, sourceSlots, childHolder, ref, cas);
+			}
+		}
+		return ref instanceof ArrayReference? (FeatureStructure) ((ArrayReference) ref).array : holder;
+	}
+
+	private static class Node {
+		// The first path going through the node, and the node's segment in it
+		private final CompiledPath path;
+		private final int segment;
+		private final List<Node> childList = new ArrayList<Node>();
+		private final List<Integer> featureMapList = new ArrayList<Integer>();
+		// The first feature map whose path goes below the node, if any
+		private int firstBelow = -1;
+		private Node[] children;
+		private int[] featureMaps;
+
+		Node(CompiledPath path, int segment) {
+			this.path = path;
+			this.segment = segment;
+		}
+
+		Node child(CompiledPath path, int segment) {
+			Object segmentValue = path.getFeaturePath().get(segment);
+			for(Node child : childList) {
+				if (child.path.getFeaturePath().get(child.segment).equals(segmentValue)) {
+					return child;
+				}
+			}
+			Node child = new Node(path, segment);
+			childList.add(child);
+			return child;
+		}
+
+		/**
+		 * Fixes the children and feature maps of the node and its 
+		 * descendants, telling whether the feature maps ending at each of 
+		 * them all precede those going below it.
+		 */
+		boolean freeze() {
+			children = childList.toArray(new Node[childList.size()]);
+			featureMaps = new int[featureMapList.size()];
+			for(int i=0; i<featureMaps.length; ++i) {
+				featureMaps[i] = featureMapList.get(i);
+			}
+			if (featureMaps.length>0 && firstBelow>=0 && featureMaps[featureMaps.length-1]>firstBelow) {
+				return false;
+			}
+			for(Node child : children) {
+				if (!child.freeze()) return false;
+			}
+			return true;
+		}
+	}
+}
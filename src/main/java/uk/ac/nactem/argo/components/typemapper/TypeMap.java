@@ -72,25 +72,52 @@ public class TypeMap {
 		.append(targetTypeName);
 
 		for(int i=0; i<getFeatureMaps().size(); i++) {
-			sb.append(",\n  ").append(getFeatureMaps().get(i).getSourceFeaturePath())
-			.append(" => ")
-			.append(getFeatureMaps().get(i).getTargetFeaturePath());
+			sb.append(",\n  ").append(getFeatureMaps().get(i));
 		}
 
 		sb.append(';');
 		return sb.toString();
 	}
 	
+	/**
+	 * Either a comparison of the value of a feature path, or of a function, 
+	 * to a value, a relation between the span of the source annotation and 
+	 * those of annotations of another type, or a logical combination of 
+	 * conditions.
+	 */
 	public static class Condition {
+		// featurePath and function are mutually exclusive
 		private FeaturePath featurePath;
+		private Function function;
 		private ComparisonOperator comparisonOperator;
+		// A list of values for membership operators
 		private Object value;
+		private LogicalOperator logicalOperator;
+		private List<Condition> operands;
+		private SpanRelation spanRelation;
+		private String relatedTypeName;
+		public Condition() {
+		}
+		public Condition(LogicalOperator logicalOperator, List<Condition> operands) {
+			this.logicalOperator = logicalOperator;
+			this.operands = operands;
+		}
+		public Condition(SpanRelation spanRelation, String relatedTypeName) {
+			this.spanRelation = spanRelation;
+			this.relatedTypeName = relatedTypeName;
+		}
 		public FeaturePath getFeaturePath() {
 			return featurePath;
 		}
 		public void setFeaturePath(FeaturePath featurePath) {
 			this.featurePath = featurePath;
 		}
+		public Function getFunction() {
+			return function;
+		}
+		public void setFunction(Function function) {
+			this.function = function;
+		}
 		public ComparisonOperator getComparisonOperator() {
 			return comparisonOperator;
 		}
@@ -103,9 +130,129 @@ public class TypeMap {
 		public void setValue(Object value) {
 			this.value = value;
 		}
+		public LogicalOperator getLogicalOperator() {
+			return logicalOperator;
+		}
+		public void setLogicalOperator(LogicalOperator logicalOperator) {
+			this.logicalOperator = logicalOperator;
+		}
+		public List<Condition> getOperands() {
+			return operands;
+		}
+		public void setOperands(List<Condition> operands) {
+			this.operands = operands;
+		}
+		public SpanRelation getSpanRelation() {
+			return spanRelation;
+		}
+		public void setSpanRelation(SpanRelation spanRelation) {
+			this.spanRelation = spanRelation;
+		}
+		public String getRelatedTypeName() {
+			return relatedTypeName;
+		}
+		public void setRelatedTypeName(String relatedTypeName) {
+			this.relatedTypeName = relatedTypeName;
+		}
+		public boolean isCompound() {
+			return logicalOperator!=null;
+		}
+		@Override
+		public String toString() {
+			if (spanRelation!=null) {
+				return spanRelation + "(" + relatedTypeName + ")";
+			}
+			if (!isCompound()) {
+				Object value = getValue();
+				if (value instanceof List) {
+					StringBuffer sb = new StringBuffer("{");
+					for(Object element : (List<?>) value) {
+						if (sb.length()>1) sb.append(", ");
+						sb.append(element);
+					}
+					value = sb.append('}');
+				}
+				return (function!=null? function : getFeaturePath()) + " " + 
+						getComparisonOperator().toString() + " " + value;
+			}
+			if (logicalOperator==LogicalOperator.NOT) {
+				return logicalOperator + " " + operandToString(operands.get(0));
+			}
+			StringBuffer sb = new StringBuffer();
+			for(int i=0; i<operands.size(); ++i) {
+				if (i>0) sb.append(' ').append(logicalOperator).append(' ');
+				sb.append(operandToString(operands.get(i)));
+			}
+			return sb.toString();
+		}
+		private static String operandToString(Condition operand) {
+			return operand.isCompound()? "(" + operand + ")" : operand.toString();
+		}
+	}
+
+	/**
+	 * Values computed from the source feature structure rather than read 
+	 * from one of its features.
+	 */
+	public enum Function {
+		// The text an annotation covers
+		COVERED_TEXT("coveredText()");
+
+		String function;
+		Function(String function) {
+			this.function = function;
+		}
+
+		@Override
+		public String toString() {
+			return function;
+		}
+	}
+
+	/**
+	 * Relations between the span of the source annotation and the span of 
+	 * another annotation.
+	 */
+	public enum SpanRelation {
+		// The other annotation begins at or before and ends at or after it
+		COVERED_BY("coveredBy"),
+		// The other annotation begins at or after and ends at or before it
+		CONTAINS("contains"),
+		// The two annotations share at least one character
+		OVERLAPS("overlaps");
+
+		String relation;
+		SpanRelation(String relation) {
+			this.relation = relation;
+		}
+
+		public static SpanRelation recognise(String relationString) {
+			for(SpanRelation relation : values()) {
+				if (relation.relation.equals(relationString))
+					return relation;
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return relation;
+		}
+	}
+
+	public enum LogicalOperator {
+		AND("and"),
+		OR("or"),
+		NOT("not");
+
+		String operator;
+		LogicalOperator(String operator) {
+			this.operator = operator;
+		}
+
 		@Override
 		public String toString() {
-			return getFeaturePath() + " " + getComparisonOperator().toString() + " " + getValue();
+			return operator;
 		}
 	}
 	
@@ -115,7 +262,15 @@ public class TypeMap {
 		LESS_THAN("<"), 
 		GREATER_THAN(">"), 
 		LESS_THEN_OR_EQUAL("<="), 
-		GREATER_THAN_OR_EQUAL(">=");
+		GREATER_THAN_OR_EQUAL(">="),
+		// Membership of a list of values
+		IN("in"),
+		NOT_IN("not in"),
+		// Matching of strings: regular expression found in the string, 
+		// prefix and suffix
+		MATCHES("~"),
+		STARTS_WITH("^="),
+		ENDS_WITH("$=");
 		
 		String operator;
 		ComparisonOperator(String operator) {
@@ -129,7 +284,43 @@ public class TypeMap {
 			}
 			return null;
 		}
+
+		/**
+		 * Tells whether the result of comparing the left-hand side to the 
+		 * right-hand side (as returned by compareTo) satisfies this operator. 
+		 * Membership and matches are accepted as equality to one of the 
+		 * values or to the pattern.
+		 */
+		public boolean accepts(int comparison) {
+			switch(this) {
+			case EQUAL:
+			case IN:
+			case MATCHES:
+			case STARTS_WITH:
+			case ENDS_WITH:
+				return comparison==0;
+			case NOT_EQUAL:
+			case NOT_IN:
+				return comparison!=0;
+			case LESS_THAN:
+				return comparison<0;
+			case GREATER_THAN:
+				return comparison>0;
+			case LESS_THEN_OR_EQUAL:
+				return comparison<=0;
+			case GREATER_THAN_OR_EQUAL:
+				return comparison>=0;
+			}
+			return false;
+		}
 		
+		/**
+		 * Tells whether the operator matches strings against a pattern.
+		 */
+		public boolean isStringMatch() {
+			return this==MATCHES || this==STARTS_WITH || this==ENDS_WITH;
+		}
+
 		@Override
 		public String toString() {
 			return operator;
@@ -137,9 +328,11 @@ public class TypeMap {
 	}
 
 	public static class FeatureMap {
-		// sourceFeaturePath and assigneableValue are mutually exclusive
+		// sourceFeaturePath, sourceFunction and assigneableValue are mutually 
+		// exclusive
 		private Object assigneableValue;
 		private FeaturePath sourceFeaturePath;
+		private Function sourceFunction;
 		private FeaturePath targetFeaturePath;
 
 		public FeatureMap(FeaturePath sourceFeaturePath, FeaturePath targetFeaturePath) {
@@ -150,6 +343,11 @@ public class TypeMap {
 			this(featureValue,null,targetFeaturePath);
 		}
 		
+		public FeatureMap(Function sourceFunction, FeaturePath targetFeaturePath) {
+			this(null, null, targetFeaturePath);
+			this.setSourceFunction(sourceFunction);
+		}
+		
 		private FeatureMap(Object featureValue, FeaturePath sourceFeaturePath, 
 				FeaturePath targetFeaturePath) {
 			this.setAssigneableValue(featureValue);
@@ -173,6 +371,14 @@ public class TypeMap {
 			this.sourceFeaturePath = sourceFeaturePath;
 		}
 
+		public Function getSourceFunction() {
+			return sourceFunction;
+		}
+
+		public void setSourceFunction(Function sourceFunction) {
+			this.sourceFunction = sourceFunction;
+		}
+
 		public FeaturePath getTargetFeaturePath() {
 			return targetFeaturePath;
 		}
@@ -187,7 +393,8 @@ public class TypeMap {
 
 		@Override
 		public String toString() {
-			return (assignsValueDirectly()? assigneableValue : sourceFeaturePath) + 
+			return (assignsValueDirectly()? assigneableValue : 
+					sourceFunction!=null? sourceFunction : sourceFeaturePath) + 
 					" => " + getTargetFeaturePath();
 		}
 	}
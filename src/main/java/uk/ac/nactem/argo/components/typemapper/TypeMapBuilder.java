@@ -17,71 +17,377 @@
  */
 package uk.ac.nactem.argo.components.typemapper;
 
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CommonTokenFactory;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
-import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.XMLInputSource;
 
 import uk.ac.nactem.argo.components.typemapper.TypeMapperBaseVisitor;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperLexer;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.TypeMapperException;
 import uk.ac.nactem.argo.components.typemapper.TypeMap.ComparisonOperator;
 import uk.ac.nactem.argo.components.typemapper.TypeMap.Condition;
 import uk.ac.nactem.argo.components.typemapper.TypeMap.FeatureMap;
 import uk.ac.nactem.argo.components.typemapper.TypeMap.FeaturePath;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.Function;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.LogicalOperator;
+import uk.ac.nactem.argo.components.typemapper.TypeMap.SpanRelation;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.ArrayIndexContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.ComparisonContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.ConditionContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.ConjunctionContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.DisjunctionContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.FeatureMapContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.FeatureMapsContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.FeaturePathContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.FeatureValueContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.FunctionContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.MapContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.MapsContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.NegationContext;
 import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.PathFeatureContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.SeparatedStatementContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.SpanRelationContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.StatementContext;
+import uk.ac.nactem.argo.components.typemapper.TypeMapperParser.ValueSetContext;
 
 public class TypeMapBuilder  {
 
+	/**
+	 * Prints the type maps of a mapping file, or with <code>-o</code> 
+	 * compiles them into their binary form, optionally checking them against 
+	 * a type system descriptor with <code>-t</code>.
+	 */
 	public static void main(String[] args) throws Exception {
 		String inputFile = null;
-		inputFile = args[0];
-		InputStream is = new FileInputStream(inputFile);
+		String outputFile = null;
+		String typeSystemFile = null;
+		for(int i=0; i<args.length; ++i) {
+			if (args[i].equals("-o") && i+1<args.length) {
+				outputFile = args[++i];
+			}
+			else if (args[i].equals("-t") && i+1<args.length) {
+				typeSystemFile = args[++i];
+			}
+			else {
+				inputFile = args[i];
+			}
+		}
+		if (inputFile==null) {
+			System.err.println("Usage: "+TypeMapBuilder.class.getName()
+					+" [-o <compiled mapping file> [-t <type system descriptor>]] <mapping file>");
+			System.exit(1);
+		}
 
-		List<TypeMap> result = build(is);
-		for(int i=0; i<result.size(); ++i) {
-			System.out.println(result.get(i));
+		List<TypeMap> result;
+		try {
+			result = build(new File(inputFile).toURI().toURL());
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		if (outputFile==null) {
+			for(int i=0; i<result.size(); ++i) {
+				System.out.println(result.get(i));
+			}
+			return;
+		}
+		if (typeSystemFile!=null) {
+			TypeSystemDescription tsd = UIMAFramework.getXMLParser().parseTypeSystemDescription(
+					new XMLInputSource(new File(typeSystemFile)));
+			tsd.resolveImports();
+			TypeSystem ts = CasCreationUtils.createCas(tsd, null, null).getTypeSystem();
+			try {
+				MappingPlan.compile(result, ts, false, false, DispatchMode.SEQUENTIAL, IndexingMode.IMMEDIATE);
+			} catch (TypeMapperException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
+		try {
+			writeCompiled(result, os);
+		} finally {
+			os.close();
 		}
 	}
 
+	/**
+	 * Parses a UTF-8 mapping definition as it is read; see 
+	 * {@link #parseStream}. Included files are resolved as file paths, URLs 
+	 * or classpath resources.
+	 */
 	public static List<TypeMap> build(InputStream mappingStream) throws IOException, ParseException {
-		return build(new ANTLRInputStream(mappingStream));
+		List<TypeMap> typeMaps = new ArrayList<TypeMap>();
+		parseStream(mappingStream, null, new Includes(new ArrayList<URL>()), typeMaps);
+		return typeMaps;
 	}
 
-	public static List<TypeMap> build(String mappingString) throws ParseException {
-		return build(new ANTLRInputStream(mappingString));
+	/**
+	 * Builds the type maps of a mapping file, or reads them if the file is 
+	 * compiled. Included files are resolved relative to the including one.
+	 */
+	public static List<TypeMap> build(URL mappingUrl) throws IOException, ParseException {
+		return build(mappingUrl, new ArrayList<URL>());
+	}
+
+	/**
+	 * As {@link #build(URL)}, adding to the given list the URL of every file 
+	 * read, including the included ones.
+	 */
+	static List<TypeMap> build(URL mappingUrl, List<URL> sources) throws IOException, ParseException {
+		List<TypeMap> typeMaps = new ArrayList<TypeMap>();
+		Includes includes = new Includes(sources);
+		includes.enter(mappingUrl);
+		parseUrl(mappingUrl, includes, typeMaps);
+		return typeMaps;
 	}
 
-	private static List<TypeMap> build(ANTLRInputStream input) throws ParseException {
+	/**
+	 * Resolves the location of a mapping file, given as a file path, a URL 
+	 * or else the name of a classpath resource.
+	 */
+	static URL locate(String location) throws IOException {
+		File file = new File(location);
+		if (file.isFile()) {
+			return file.toURI().toURL();
+		}
+		try {
+			return new URL(location);
+		} catch (MalformedURLException e) {
+			URL resource = TypeMapBuilder.class.getClassLoader().getResource(location);
+			if (resource==null) {
+				throw new FileNotFoundException(location);
+			}
+			return resource;
+		}
+	}
+
+	/**
+	 * Reads type maps written by {@link #writeCompiled}.
+	 */
+	public static List<TypeMap> readCompiled(InputStream compiledStream) throws IOException {
+		return BinaryMapping.read(compiledStream);
+	}
+
+	/**
+	 * Writes type maps in a binary form that loads faster than parsing 
+	 * their definition.
+	 */
+	public static void writeCompiled(List<TypeMap> typeMaps, OutputStream os) throws IOException {
+		BinaryMapping.write(typeMaps, os);
+	}
+
+	/**
+	 * Tells whether the stream, which must support marks, holds compiled 
+	 * type maps rather than a mapping definition. The stream is left at its 
+	 * current position.
+	 */
+	public static boolean isCompiled(InputStream is) throws IOException {
+		byte[] header = new byte[4];
+		is.mark(header.length);
+		int read = 0;
+		try {
+			while(read<header.length) {
+				int n = is.read(header, read, header.length-read);
+				if (n<0) break;
+				read += n;
+			}
+		} finally {
+			is.reset();
+		}
+		return read==header.length && BinaryMapping.isBinary(header);
+	}
+
+	/**
+	 * Parses first with SLL prediction, which is faster and enough for any 
+	 * valid mapping, bailing out at the first error. Only then is the input 
+	 * parsed again in full LL mode, which reports syntax errors accurately. 
+	 * Included files are resolved as file paths, URLs or classpath resources.
+	 */
+	public static List<TypeMap> build(String mappingString) throws ParseException {
+		ANTLRInputStream input = new ANTLRInputStream(mappingString);
 		TypeMapperLexer lexer = new TypeMapperLexer(input);
 		CommonTokenStream tokens = new CommonTokenStream(lexer);
 		TypeMapperParser parser = new TypeMapperParser(tokens);
 		ParseException parseException = new ParseException();
 		parser.removeErrorListeners();
-		parser.addErrorListener(new ErrorListener(parseException));
-		ParseTree tree = parser.maps(); // parse
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		parser.setErrorHandler(new BailErrorStrategy());
+		MapsContext tree;
+		try {
+			tree = parser.maps(); // parse
+		} catch (ParseCancellationException e) {
+			tokens.seek(0);
+			parser.reset();
+			parser.addErrorListener(new ErrorListener(parseException));
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			parser.setErrorHandler(new DefaultErrorStrategy());
+			tree = parser.maps();
+		}
 
 		if (parseException.getSyntaxErrors().size()>0) 
 			throw parseException;
 
+		List<TypeMap> typeMaps = new ArrayList<TypeMap>();
+		Includes includes = new Includes(new ArrayList<URL>());
 		Visitor visitor = new Visitor();
-		return visitor.visit(tree);
+		for(StatementContext statement : tree.statement()) {
+			addStatement(statement, null, includes, typeMaps, visitor, parseException);
+		}
+		if (parseException.getSyntaxErrors().size()>0) 
+			throw parseException;
+		return typeMaps;
+	}
+
+	private static void parseUrl(URL url, Includes includes, List<TypeMap> typeMaps) 
+			throws IOException, ParseException {
+		InputStream is = new BufferedInputStream(url.openStream());
+		try {
+			if (isCompiled(is)) {
+				typeMaps.addAll(readCompiled(is));
+			}
+			else {
+				parseStream(is, url, includes, typeMaps);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Parses a mapping one statement at a time from unbuffered character and 
+	 * token streams, so that neither the text nor the parse tree of the whole 
+	 * mapping is held in memory. Statements with syntax errors are skipped 
+	 * and all errors are reported at the end.
+	 */
+	private static void parseStream(InputStream is, URL url, Includes includes, List<TypeMap> typeMaps) 
+			throws IOException, ParseException {
+		TypeMapperLexer lexer = new TypeMapperLexer(
+				new UnbufferedCharStream(new InputStreamReader(is, "UTF-8")));
+		// The characters of a token are released once it is read
+		lexer.setTokenFactory(new CommonTokenFactory(true));
+		TokenStream tokens = new UnbufferedTokenStream<Token>(lexer);
+		TypeMapperParser parser = new TypeMapperParser(tokens);
+		ParseException parseException = new ParseException();
+		parser.removeErrorListeners();
+		parser.addErrorListener(new ErrorListener(parseException, url));
+		Visitor visitor = new Visitor();
+		while(tokens.LA(1)!=Token.EOF) {
+			int errors = parseException.getSyntaxErrors().size();
+			int index = tokens.index();
+			parser.getErrorHandler().reset(parser);
+			SeparatedStatementContext statement = parser.separatedStatement();
+			if (parseException.getSyntaxErrors().size()==errors) {
+				addStatement(statement.statement(), url, includes, typeMaps, visitor, parseException);
+			}
+			else if (tokens.index()==index) {
+				// Skip the token the parser could not recover from
+				tokens.consume();
+			}
+		}
+		if (parseException.getSyntaxErrors().size()>0) 
+			throw parseException;
+	}
+
+	/**
+	 * Adds the type map of a statement, or those of the file it includes. 
+	 * Included files which cannot be read or include themselves are reported 
+	 * as errors of the statement.
+	 */
+	private static void addStatement(StatementContext statement, URL url, Includes includes, 
+			List<TypeMap> typeMaps, Visitor visitor, ParseException parseException) throws ParseException {
+		if (statement.map()!=null) {
+			typeMaps.add(visitor.visitMap(statement.map()));
+			return;
+		}
+		String quotedLocation = statement.include().STRING().getText();
+		String location = quotedLocation.substring(1, quotedLocation.length()-1);
+		Token start = statement.getStart();
+		URL includedUrl;
+		try {
+			includedUrl = url!=null? new URL(url, location) : locate(location);
+		} catch (IOException e) {
+			parseException.addSyntaxError(url, start.getLine(), start.getCharPositionInLine(), 
+					"cannot include '"+location+"': "+e);
+			return;
+		}
+		if (!includes.enter(includedUrl)) {
+			parseException.addSyntaxError(url, start.getLine(), start.getCharPositionInLine(), 
+					"circular include of '"+location+"'");
+			return;
+		}
+		try {
+			parseUrl(includedUrl, includes, typeMaps);
+		} catch (IOException e) {
+			parseException.addSyntaxError(url, start.getLine(), start.getCharPositionInLine(), 
+					"cannot include '"+location+"': "+e);
+		} finally {
+			includes.exit(includedUrl);
+		}
+	}
+
+	/**
+	 * The files read while building a mapping, and those being read.
+	 */
+	private static class Includes {
+		private final List<URL> sources;
+		private final Set<String> open = new HashSet<String>();
+
+		Includes(List<URL> sources) {
+			this.sources = sources;
+		}
+
+		/**
+		 * Returns false if the file is already being read.
+		 */
+		boolean enter(URL url) {
+			if (!open.add(url.toExternalForm())) {
+				return false;
+			}
+			sources.add(url);
+			return true;
+		}
+
+		void exit(URL url) {
+			open.remove(url.toExternalForm());
+		}
 	}
 
 	public static class ParseException extends Exception {
@@ -95,6 +401,11 @@ public class TypeMapBuilder  {
 			errorsSink.add("Line "+line+", char "+charPositionInLine+": "+msg);
 		}
 
+		void addSyntaxError(URL source, int line, int charPositionInLine, String msg)  {
+			errorsSink.add((source!=null? source+": " : "")+
+					"Line "+line+", char "+charPositionInLine+": "+msg);
+		}
+
 		public List<String> getSyntaxErrors() {
 			return errorsSink;
 		}
@@ -112,38 +423,25 @@ public class TypeMapBuilder  {
 
 	private static class ErrorListener extends BaseErrorListener {
 		private ParseException exception;
+		private URL source;
 		ErrorListener(ParseException exception) {
+			this(exception, null);
+		}
+
+		ErrorListener(ParseException exception, URL source) {
 			this.exception = exception;
+			this.source = source;
 		}
 
 		@Override
 		public void syntaxError(Recognizer<?, ?> recognizer,
 				Object offendingSymbol, int line, int charPositionInLine,
 				String msg, RecognitionException e) {
-			exception.addSyntaxError(line, charPositionInLine, msg);
+			exception.addSyntaxError(source, line, charPositionInLine, msg);
 		}
 	}
 
 	private static class Visitor extends TypeMapperBaseVisitor<Object> {
-		@SuppressWarnings("unchecked")
-		@Override
-		public List<TypeMap> visit(ParseTree tree) {
-			return (List<TypeMap>) super.visit(tree);
-		}
-
-		@Override
-		public List<TypeMap> visitMaps(MapsContext ctx) {
-			int i=0;
-			List<TypeMap> typeMaps = new ArrayList<TypeMap>();
-			while(true) {
-				MapContext mapCtx = ctx.map(i++);
-				if (mapCtx==null) break;
-				TypeMap map = visitMap(mapCtx);
-				typeMaps.add(map);
-			}
-			return typeMaps;
-		}
-
 		@Override
 		public TypeMap visitMap(MapContext ctx) {
 			TypeMap map = new TypeMap(ctx.sourceTypeName().getText(), ctx.targetTypeName().getText());
@@ -156,14 +454,90 @@ public class TypeMapBuilder  {
 
 		@Override
 		public Condition visitCondition(ConditionContext ctx) {
+			return visitDisjunction(ctx.disjunction());
+		}
+
+		@Override
+		public Condition visitDisjunction(DisjunctionContext ctx) {
+			if (ctx.conjunction().size()==1) {
+				return visitConjunction(ctx.conjunction(0));
+			}
+			List<Condition> operands = new ArrayList<Condition>();
+			for(ConjunctionContext conjunctionCtx : ctx.conjunction()) {
+				operands.add(visitConjunction(conjunctionCtx));
+			}
+			return new Condition(LogicalOperator.OR, operands);
+		}
+
+		@Override
+		public Condition visitConjunction(ConjunctionContext ctx) {
+			if (ctx.negation().size()==1) {
+				return visitNegation(ctx.negation(0));
+			}
+			List<Condition> operands = new ArrayList<Condition>();
+			for(NegationContext negationCtx : ctx.negation()) {
+				operands.add(visitNegation(negationCtx));
+			}
+			return new Condition(LogicalOperator.AND, operands);
+		}
+
+		@Override
+		public Condition visitNegation(NegationContext ctx) {
+			if (ctx.negation()!=null) {
+				List<Condition> operands = new ArrayList<Condition>();
+				operands.add(visitNegation(ctx.negation()));
+				return new Condition(LogicalOperator.NOT, operands);
+			}
+			if (ctx.disjunction()!=null) {
+				return visitDisjunction(ctx.disjunction());
+			}
+			if (ctx.spanRelation()!=null) {
+				return visitSpanRelation(ctx.spanRelation());
+			}
+			return visitComparison(ctx.comparison());
+		}
+
+		@Override
+		public Condition visitSpanRelation(SpanRelationContext ctx) {
+			return new Condition(SpanRelation.recognise(ctx.relation.getText()), 
+					ctx.relatedTypeName().getText());
+		}
+
+		@Override
+		public Condition visitComparison(ComparisonContext ctx) {
 			Condition condition = new Condition();
-			FeaturePath featurePath = visitFeaturePath(ctx.featurePath());
-			condition.setFeaturePath(featurePath);
-			condition.setComparisonOperator(ComparisonOperator.recognise(ctx.COMPARISON_OPERATOR().getText()));
-			condition.setValue(visitFeatureValue(ctx.featureValue()));
+			if (ctx.function()!=null) {
+				condition.setFunction(visitFunction(ctx.function()));
+			}
+			else {
+				condition.setFeaturePath(visitFeaturePath(ctx.featurePath()));
+			}
+			if (ctx.valueSet()!=null) {
+				condition.setComparisonOperator(ctx.negated!=null? ComparisonOperator.NOT_IN : ComparisonOperator.IN);
+				condition.setValue(visitValueSet(ctx.valueSet()));
+			}
+			else {
+				condition.setComparisonOperator(ComparisonOperator.recognise(ctx.COMPARISON_OPERATOR().getText()));
+				condition.setValue(visitFeatureValue(ctx.featureValue()));
+			}
 			return condition;
 		}
 
+		@Override
+		public Function visitFunction(FunctionContext ctx) {
+			// coveredText is the only function
+			return Function.COVERED_TEXT;
+		}
+
+		@Override
+		public List<Object> visitValueSet(ValueSetContext ctx) {
+			List<Object> values = new ArrayList<Object>();
+			for(FeatureValueContext featureValueCtx : ctx.featureValue()) {
+				values.add(visitFeatureValue(featureValueCtx));
+			}
+			return values;
+		}
+
 		@Override
 		public FeaturePath visitFeaturePath(FeaturePathContext ctx) {
 			FeaturePath featurePath = new FeaturePath();
@@ -194,7 +568,7 @@ public class TypeMapBuilder  {
 				return Integer.parseInt(ctx.INT().getText());
 			}
 			if (ctx.FLOAT()!=null) {
-				return Float.parseFloat(ctx.FLOAT().getText());
+				return Double.parseDouble(ctx.FLOAT().getText());
 			}
 			return null;
 		}
@@ -217,6 +591,10 @@ public class TypeMapBuilder  {
 				return new FeatureMap(visitFeatureValue(ctx.featureValue()),
 						visitFeaturePath(ctx.featurePath(0)));
 			}
+			else if (ctx.function()!=null) {
+				return new FeatureMap(visitFunction(ctx.function()),
+						visitFeaturePath(ctx.featurePath(0)));
+			}
 			else {
 				return new FeatureMap(
 						visitFeaturePath(ctx.featurePath(0)),
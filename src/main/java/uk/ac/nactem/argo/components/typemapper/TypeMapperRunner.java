@@ -0,0 +1,225 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.cas.impl.XmiCasDeserializer;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.XMLInputSource;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+
+/**
+ * Applies a mapping to a directory of serialised CASes outside of a UIMA 
+ * pipeline. Files ending in <code>.xmi</code> are read and written as XMI; 
+ * any other file is read as binary CAS (in any of the binary formats) and 
+ * written in compressed binary form. The mapping is compiled once and shared 
+ * by all worker threads, each of which reuses its own CAS. Rules are 
+ * dispatched and targets indexed as by the component's defaults, unless 
+ * other modes are given.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+public class TypeMapperRunner {
+	private final TypeSystemDescription typeSystemDescription;
+	private final List<TypeMap> typeMaps;
+	private final int threads;
+	private final DispatchMode dispatchMode;
+	private final IndexingMode indexingMode;
+
+	private final AtomicLong documents = new AtomicLong();
+	private final AtomicLong failedDocuments = new AtomicLong();
+	private final AtomicLong annotations = new AtomicLong();
+
+	public TypeMapperRunner(TypeSystemDescription typeSystemDescription, List<TypeMap> typeMaps, int threads) {
+		this(typeSystemDescription, typeMaps, threads, DispatchMode.SEQUENTIAL, IndexingMode.IMMEDIATE);
+	}
+
+	public TypeMapperRunner(TypeSystemDescription typeSystemDescription, List<TypeMap> typeMaps, int threads, 
+			DispatchMode dispatchMode, IndexingMode indexingMode) {
+		this.typeSystemDescription = typeSystemDescription;
+		this.typeMaps = typeMaps;
+		this.threads = threads;
+		this.dispatchMode = dispatchMode;
+		this.indexingMode = indexingMode;
+	}
+
+	public static void main(String[] args) throws Exception {
+		DispatchMode dispatchMode = DispatchMode.SEQUENTIAL;
+		IndexingMode indexingMode = IndexingMode.IMMEDIATE;
+		List<String> arguments = new ArrayList<String>();
+		for(int i=0; i<args.length; ++i) {
+			if (args[i].equals("-d") && i+1<args.length) {
+				dispatchMode = DispatchMode.valueOf(args[++i]);
+			}
+			else if (args[i].equals("-i") && i+1<args.length) {
+				indexingMode = IndexingMode.valueOf(args[++i]);
+			}
+			else {
+				arguments.add(args[i]);
+			}
+		}
+		if (arguments.size()<4) {
+			System.err.println("Usage: "+TypeMapperRunner.class.getName()
+					+" [-d <dispatch mode>] [-i <indexing mode>]"
+					+" <type system descriptor> <mapping file> <input dir> <output dir> [threads]");
+			System.exit(1);
+		}
+		TypeSystemDescription tsd = UIMAFramework.getXMLParser().parseTypeSystemDescription(
+				new XMLInputSource(new File(arguments.get(0))));
+		tsd.resolveImports();
+		List<TypeMap> typeMaps = TypeMapBuilder.build(new File(arguments.get(1)).toURI().toURL());
+		int threads = arguments.size()>4? Integer.parseInt(arguments.get(4)) 
+				: Runtime.getRuntime().availableProcessors();
+
+		TypeMapperRunner runner = new TypeMapperRunner(tsd, typeMaps, threads, dispatchMode, indexingMode);
+		long start = System.nanoTime();
+		runner.run(new File(arguments.get(2)), new File(arguments.get(3)));
+		double seconds = (System.nanoTime()-start)/1e9;
+
+		System.out.println(String.format("%d documents (%d failed), %d annotations created in %.1fs: %.1f documents/s, %.1f annotations/s", 
+				runner.getDocumentCount(), runner.getFailedDocumentCount(), runner.getAnnotationCount(), seconds, 
+				runner.getDocumentCount()/seconds, runner.getAnnotationCount()/seconds));
+	}
+
+	/**
+	 * Maps every file of the input directory into a file of the same name in 
+	 * the output directory. Documents which cannot be read, mapped or written 
+	 * are reported and skipped.
+	 */
+	public void run(File inputDir, final File outputDir) throws Exception {
+		File[] files = inputDir.listFiles();
+		if (files==null) {
+			throw new IllegalArgumentException("Not a directory: "+inputDir);
+		}
+		outputDir.mkdirs();
+		final Queue<File> queue = new ConcurrentLinkedQueue<File>();
+		for(File file : files) {
+			if (file.isFile()) queue.add(file);
+		}
+
+		// CASes created from the type system of the first share it, and so 
+		// share a single compiled plan.
+		List<CAS> cases = new ArrayList<CAS>(threads);
+		cases.add(CasCreationUtils.createCas(typeSystemDescription, null, null));
+		TypeSystem ts = cases.get(0).getTypeSystem();
+		for(int i=1; i<threads; ++i) {
+			cases.add(CasCreationUtils.createCas(ts, null, null, null));
+		}
+		final MappingPlan plan = MappingPlan.compile(typeMaps, ts, true, false, 
+				dispatchMode, indexingMode);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>(threads);
+			for(final CAS cas : cases) {
+				workers.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						File file;
+						while((file = queue.poll())!=null) {
+							process(plan, cas, file, new File(outputDir, file.getName()));
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> worker : workers) {
+				try {
+					worker.get();
+				} catch (ExecutionException e) {
+					throw (Exception) e.getCause();
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void process(MappingPlan plan, CAS cas, File inputFile, File outputFile) {
+		boolean xmi = inputFile.getName().endsWith(".xmi");
+		try {
+			cas.reset();
+			InputStream is = new BufferedInputStream(new FileInputStream(inputFile));
+			try {
+				if (xmi) {
+					XmiCasDeserializer.deserialize(is, cas);
+				}
+				else {
+					Serialization.deserializeCAS(cas, is);
+				}
+			} finally {
+				is.close();
+			}
+
+			annotations.addAndGet(plan.apply(cas));
+
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
+			try {
+				if (xmi) {
+					XmiCasSerializer.serialize(cas, os);
+				}
+				else {
+					Serialization.serializeWithCompression(cas, os);
+				}
+			} finally {
+				os.close();
+			}
+			documents.incrementAndGet();
+		} catch (Exception e) {
+			failedDocuments.incrementAndGet();
+			System.err.println("Failed to map "+inputFile+": "+e.getMessage());
+		}
+	}
+
+	public long getDocumentCount() {
+		return documents.get();
+	}
+
+	public long getFailedDocumentCount() {
+		return failedDocuments.get();
+	}
+
+	public long getAnnotationCount() {
+		return annotations.get();
+	}
+}
@@ -17,74 +17,42 @@
  */
 package uk.ac.nactem.argo.components.typemapper;
 
-import org.apache.uima.cas.ArrayFS;
-import org.apache.uima.cas.BooleanArrayFS;
-import org.apache.uima.cas.ByteArrayFS;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CommonArrayFS;
-import org.apache.uima.cas.DoubleArrayFS;
 import org.apache.uima.cas.FeatureStructure;
-import org.apache.uima.cas.FloatArrayFS;
-import org.apache.uima.cas.IntArrayFS;
-import org.apache.uima.cas.LongArrayFS;
-import org.apache.uima.cas.ShortArrayFS;
-import org.apache.uima.cas.StringArrayFS;
 import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
 
 public class UimaUtils {
 	public static CommonArrayFS createArray(CAS cas, Type type, int length) {
-		String name = type.getName();
-		if (CAS.TYPE_NAME_BOOLEAN_ARRAY.equals(name)) 
-			return cas.createBooleanArrayFS(length);
-		if (CAS.TYPE_NAME_BYTE_ARRAY.equals(name)) 
-			return cas.createByteArrayFS(length);
-		if (CAS.TYPE_NAME_DOUBLE_ARRAY.equals(name)) 
-			return cas.createDoubleArrayFS(length);
-		if (CAS.TYPE_NAME_FLOAT_ARRAY.equals(name)) 
-			return cas.createFloatArrayFS(length);
-		if (CAS.TYPE_NAME_INTEGER_ARRAY.equals(name)) 
-			return cas.createIntArrayFS(length);
-		if (CAS.TYPE_NAME_LONG_ARRAY.equals(name)) 
-			return cas.createLongArrayFS(length);
-		if (CAS.TYPE_NAME_SHORT_ARRAY.equals(name)) 
-			return cas.createShortArrayFS(length);
-		if (CAS.TYPE_NAME_STRING_ARRAY.equals(name)) 
-			return cas.createStringArrayFS(length);
-		return cas.createArrayFS(length);
+		return FeatureRange.ofElements(type).createArray(cas, length);
 	}
 
 	public static void setArrayValue(CommonArrayFS array, int index, Object value) {
-		String name = array.getType().getName();
-		if (CAS.TYPE_NAME_BOOLEAN_ARRAY.equals(name)) 
-			((BooleanArrayFS)array).set(index, (Boolean) value);
-		else if (CAS.TYPE_NAME_BYTE_ARRAY.equals(name)) 
-			((ByteArrayFS)array).set(index, (Byte) value);
-		else if (CAS.TYPE_NAME_DOUBLE_ARRAY.equals(name)) 
-			((DoubleArrayFS)array).set(index, (Double) value);
-		else if (CAS.TYPE_NAME_FLOAT_ARRAY.equals(name)) 
-			((FloatArrayFS)array).set(index, (Float) value);
-		else if (CAS.TYPE_NAME_INTEGER_ARRAY.equals(name)) 
-			((IntArrayFS)array).set(index, (Integer) value);
-		else if (CAS.TYPE_NAME_LONG_ARRAY.equals(name)) 
-			((LongArrayFS)array).set(index, (Long) value);
-		else if (CAS.TYPE_NAME_SHORT_ARRAY.equals(name)) 
-			((ShortArrayFS)array).set(index, (Short) value);
-		else if (CAS.TYPE_NAME_STRING_ARRAY.equals(name)) 
-			((StringArrayFS)array).set(index, (String) value);
-		else  
-			((ArrayFS)array).set(index, (FeatureStructure) value);
+		FeatureRange.ofElements(array).setElement(array, index, value);
 	}
 
 	public static Object getArrayValue(CommonArrayFS array, int index)  {
-		// Taking a shortcut
-		try {
-			return array.getClass().getMethod("get", int.class)
-					.invoke(array, index);
-		} catch (Exception e) {
-			//TODO handle it better
-			throw new RuntimeException(e);
-		}
+		return FeatureRange.ofElements(array).getElement(array, index);
+	}
+
+	/**
+	 * Copies a run of elements between two arrays of the same type.
+	 */
+	public static void copyArray(CommonArrayFS source, int sourceOffset, 
+			CommonArrayFS target, int targetOffset, int length) {
+		FeatureRange.ofElements(source).copyElements(source, sourceOffset, target, targetOffset, length);
+	}
+
+	/**
+	 * Creates a copy of the given array enlarged to the given length; the 
+	 * additional elements are left to their default value.
+	 */
+	public static CommonArrayFS expandArray(CAS cas, CommonArrayFS array, int length) {
+		FeatureRange elementRange = FeatureRange.ofElements(array);
+		CommonArrayFS expandedArray = elementRange.createArray(cas, length);
+		elementRange.copyElements(array, 0, expandedArray, 0, array.size());
+		return expandedArray;
 	}
 	
 	public static Type getType(TypeSystem ts, Object value) {
@@ -0,0 +1,134 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Test;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+
+/**
+ * Checks that grouping rules into shared scans gives the same targets as 
+ * applying them one by one, in every indexing mode.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+public class MappingPlanTest {
+	private static final String[] TYPES = { "t.A", "t.B", "t.C", "t.S", "t.X", "t.Y" };
+
+	@Test
+	public void chainedRules() throws Exception {
+		assertGroupedAsSequential("t.A => t.B; t.B => t.C;");
+	}
+
+	@Test
+	public void laterRuleFeedsEarlierSource() throws Exception {
+		assertGroupedAsSequential("t.A => t.C; t.X => t.Y; t.A => t.X;");
+	}
+
+	@Test
+	public void laterRuleFeedsEarlierSourceSupertype() throws Exception {
+		assertGroupedAsSequential("t.A => t.C; t.S => t.SubA;");
+	}
+
+	@Test
+	public void laterRuleFeedsEarlierSpanRelation() throws Exception {
+		assertGroupedAsSequential("t.S => t.C; t.A where coveredBy(t.B) => t.C; t.S => t.B;");
+	}
+
+	@Test
+	public void independentRules() throws Exception {
+		assertGroupedAsSequential("t.A => t.C; t.S => t.Y; t.A where coveredBy(t.S) => t.X;");
+	}
+
+	private static void assertGroupedAsSequential(String mapping) throws Exception {
+		TypeSystemDescription tsd = typeSystem();
+		CAS cas = CasCreationUtils.createCas(tsd, null, null);
+		for(IndexingMode indexingMode : IndexingMode.values()) {
+			Map<String, Integer> expected = apply(mapping, cas, DispatchMode.SEQUENTIAL, indexingMode);
+			for(DispatchMode dispatchMode : DispatchMode.values()) {
+				assertEquals(dispatchMode+"/"+indexingMode+": "+mapping, expected, 
+						apply(mapping, cas, dispatchMode, indexingMode));
+			}
+		}
+	}
+
+	private static Map<String, Integer> apply(String mapping, CAS cas, 
+			DispatchMode dispatchMode, IndexingMode indexingMode) throws Exception {
+		cas.reset();
+		populate(cas);
+		MappingPlan plan = MappingPlan.compile(TypeMapBuilder.build(mapping), cas.getTypeSystem(), 
+				false, false, dispatchMode, indexingMode);
+		plan.apply(cas);
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for(String typeName : TYPES) {
+			counts.put(typeName, count(cas, cas.getTypeSystem().getType(typeName)));
+		}
+		counts.put("t.SubA", count(cas, cas.getTypeSystem().getType("t.SubA")));
+		return counts;
+	}
+
+	/**
+	 * Counts the feature structures of exactly the given type.
+	 */
+	private static int count(CAS cas, Type type) {
+		int count = 0;
+		FSIterator<FeatureStructure> fsIter = cas.getIndexRepository().getAllIndexedFS(type);
+		while(fsIter.hasNext()) {
+			if (fsIter.next().getType()==type) ++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Five sentences, each covering an annotation of type A.
+	 */
+	private static void populate(CAS cas) {
+		Type sentenceType = cas.getTypeSystem().getType("t.S");
+		Type aType = cas.getTypeSystem().getType("t.A");
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<5; ++i) {
+			int begin = text.length();
+			text.append("a b c d. ");
+			cas.addFsToIndexes(cas.createAnnotation(sentenceType, begin, begin+8));
+			cas.addFsToIndexes(cas.createAnnotation(aType, begin+2, begin+3));
+		}
+		cas.setDocumentText(text.toString());
+	}
+
+	private static TypeSystemDescription typeSystem() {
+		TypeSystemDescription tsd = UIMAFramework.getResourceSpecifierFactory().createTypeSystemDescription();
+		for(String typeName : TYPES) {
+			tsd.addType(typeName, "", CAS.TYPE_NAME_ANNOTATION);
+		}
+		tsd.addType("t.SubA", "", "t.A");
+		return tsd;
+	}
+}
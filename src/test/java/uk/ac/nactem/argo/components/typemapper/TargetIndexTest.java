@@ -0,0 +1,59 @@
+/**
+ * Nactem Type Mapper - A UIMA component which is able to create new annotations from existing ones, using a mapping definition language
+ * Copyright © 2016 The National Centre for Text Mining (NaCTeM), University of Manchester (jacob.carter@manchester.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.nactem.argo.components.typemapper;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Test;
+
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.DispatchMode;
+import uk.ac.nactem.argo.components.typemapper.NactemTypeMapper.IndexingMode;
+
+/**
+ * Checks that mapping a CAS again does not duplicate its targets.
+ * 
+ * @author NaCTeM - National Centre of Text Mining
+ */
+public class TargetIndexTest {
+
+	@Test
+	public void annotationTargetsOfNonAnnotationSources() throws Exception {
+		TypeSystemDescription tsd = UIMAFramework.getResourceSpecifierFactory().createTypeSystemDescription();
+		tsd.addType("t.T", "", CAS.TYPE_NAME_TOP).addFeature("s", "", CAS.TYPE_NAME_STRING);
+		tsd.addType("t.B", "", CAS.TYPE_NAME_ANNOTATION).addFeature("s", "", CAS.TYPE_NAME_STRING);
+		CAS cas = CasCreationUtils.createCas(tsd, null, null);
+		cas.setDocumentText("text");
+		Type sourceType = cas.getTypeSystem().getType("t.T");
+		FeatureStructure source = cas.createFS(sourceType);
+		source.setStringValue(sourceType.getFeatureByBaseName("s"), "x");
+		cas.addFsToIndexes(source);
+
+		MappingPlan plan = MappingPlan.compile(TypeMapBuilder.build("t.T => t.B, s => s;"), 
+				cas.getTypeSystem(), false, false, DispatchMode.SEQUENTIAL, IndexingMode.IMMEDIATE);
+		for(int i=0; i<3; ++i) {
+			plan.apply(cas, null, 1, 0, null, new TargetIndex(cas));
+		}
+		assertEquals(1, cas.getAnnotationIndex(cas.getTypeSystem().getType("t.B")).size());
+	}
+}